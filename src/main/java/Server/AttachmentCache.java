@@ -0,0 +1,125 @@
+package Server;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where attachments are stored, by attachment id, so a file everyone opens at once is looked up in the
+ * database once. Least recently used entries go first when the entries outgrow their byte budget, and an
+ * entry older than the TTL is looked up again. Anything that moves or deletes an attachment invalidates it.
+ */
+public class AttachmentCache {
+    public static final long DEFAULT_MAX_BYTES = 1 << 20;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60_000;
+    private static final int ENTRY_OVERHEAD = 96; // map node, boxed key, File and its timestamp
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry {
+        final File file;
+        final int weight;
+        final long loadedAt;
+
+        Entry(File file, long loadedAt) {
+            this.file = file;
+            this.weight = ENTRY_OVERHEAD + 2 * file.getPath().length();
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * @param maxBytes estimated memory the entries may take, 0 turns the cache off
+     */
+    public AttachmentCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Read db.attachmentcache.bytes and db.attachmentcache.ttl from the configuration
+     */
+    public static AttachmentCache fromProperties(Properties properties) {
+        return new AttachmentCache(
+                Long.parseLong(properties.getProperty("db.attachmentcache.bytes", String.valueOf(DEFAULT_MAX_BYTES)).trim()),
+                Long.parseLong(properties.getProperty("db.attachmentcache.ttl", String.valueOf(DEFAULT_TTL_MILLIS)).trim()));
+    }
+
+    /**
+     * @return the stored file, null if it has to be looked up
+     */
+    public synchronized File get(int attachmentId) {
+        Entry entry = entries.get(attachmentId);
+        if (entry != null && System.nanoTime() - entry.loadedAt > ttlNanos) {
+            remove(attachmentId);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.file;
+    }
+
+    public synchronized void put(int attachmentId, File file) {
+        Entry entry = new Entry(file, System.nanoTime());
+        if (entry.weight > maxBytes) return;
+        remove(attachmentId);
+        entries.put(attachmentId, entry);
+        bytes += entry.weight;
+        Iterator<Map.Entry<Integer, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget an attachment whose file was moved or deleted
+     */
+    public synchronized void invalidate(int attachmentId) {
+        remove(attachmentId);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(int attachmentId) {
+        Entry removed = entries.remove(attachmentId);
+        if (removed != null) bytes -= removed.weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long byteCount() {
+        return bytes;
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+}
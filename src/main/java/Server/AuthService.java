@@ -0,0 +1,150 @@
+package Server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Password checks and session tokens. bcrypt is slow on purpose, so hashing and verifying passwords runs on
+ * a few threads of its own behind a bounded queue: a storm of logins, e.g. every client at once after a restart,
+ * keeps those threads busy and is turned away beyond the queue instead of taking every core from the chat.
+ * <p>
+ * A successful login gets a token naming the user and when it expires, signed with HMAC-SHA256 and the server's
+ * key, which logs the user in again without the password and so without bcrypt. The key is kept in a file, so
+ * tokens outlive a restart, and servers sharing the file accept each other's tokens.
+ */
+public class AuthService {
+    public static final int DEFAULT_QUEUE = 256;
+    public static final long DEFAULT_TOKEN_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final String DEFAULT_KEY_FILE = "./serverData/auth.key";
+    private static final String MAC = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final ThreadPoolExecutor executor;
+    private final SecretKeySpec key;
+    private final long tokenTtlMillis;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AuthService(Properties properties) throws IOException {
+        int threads = threads(properties);
+        int queue = Integer.parseInt(properties.getProperty("server.auth.queue", String.valueOf(DEFAULT_QUEUE)).trim());
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+            Thread thread = new Thread(r, "auth-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.key = new SecretKeySpec(loadKey(Paths.get(properties.getProperty("server.auth.keyfile", DEFAULT_KEY_FILE).trim())), MAC);
+        this.tokenTtlMillis = Long.parseLong(properties.getProperty("server.auth.tokenttl", String.valueOf(DEFAULT_TOKEN_TTL_MILLIS)).trim());
+    }
+
+    /**
+     * Read server.auth.threads from the configuration, one per core by default
+     */
+    static int threads(Properties properties) {
+        String value = properties.getProperty("server.auth.threads");
+        return value == null ? Runtime.getRuntime().availableProcessors() : Math.max(1, Integer.parseInt(value.trim()));
+    }
+
+    /**
+     * The key in the file, created there the first time
+     */
+    private static byte[] loadKey(Path file) throws IOException {
+        if (Files.exists(file)) return Files.readAllBytes(file);
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        try {
+            Files.write(file, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return Files.readAllBytes(file); // another server sharing the directory made it first
+        }
+        return key;
+    }
+
+    /**
+     * Run password work (bcrypt) on the auth threads
+     * @return false if too many are waiting already, the task is not run then
+     */
+    public boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * A token for a user who just logged in, as "user.expiry.signature", user and signature in URL-safe base64
+     */
+    public String issue(String username) {
+        String claims = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + (System.currentTimeMillis() + tokenTtlMillis);
+        return claims + "." + ENCODER.encodeToString(sign(claims));
+    }
+
+    /**
+     * Check a token's signature and expiry, no database and no bcrypt
+     * @return the user it was issued to, null if it is not valid
+     */
+    public String verify(String token) {
+        int signatureAt = token.lastIndexOf('.');
+        int expiryAt = token.lastIndexOf('.', signatureAt - 1);
+        if (expiryAt <= 0) return null;
+        String claims = token.substring(0, signatureAt);
+        try {
+            if (!MessageDigest.isEqual(sign(claims), DECODER.decode(token.substring(signatureAt + 1)))) return null;
+            if (Long.parseLong(token.substring(expiryAt + 1, signatureAt)) < System.currentTimeMillis()) return null;
+            return new String(DECODER.decode(token.substring(0, expiryAt)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) { // not base64, or not a number
+            return null;
+        }
+    }
+
+    private byte[] sign(String claims) {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(key);
+            return mac.doFinal(claims.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC + " is not available", e); // every JRE has it
+        }
+    }
+
+    /**
+     * Password checks waiting for a thread
+     */
+    public int queuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Logins and registrations turned away because the queue was full
+     */
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contents of small attachments kept off-heap, so a voice message or an image the whole room downloads
+ * right after it is posted is read from disk once. Filled when an upload is saved and on the first download
+ * of a file that is not cached; least recently used files go first when the contents outgrow their budget.
+ * Blobs are named by their digest and never change, so an entry only goes when it is evicted or its file deleted.
+ */
+public class BlobCache {
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    public static final long DEFAULT_MAX_FILE_BYTES = 4L << 20;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<File, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes contents kept in memory, 0 turns the cache off
+     * @param maxFileBytes larger files are always read from disk
+     */
+    public BlobCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+    }
+
+    /**
+     * Read server.blobcache.bytes and server.blobcache.maxfile from the configuration
+     */
+    public static BlobCache fromProperties(Properties properties) {
+        return new BlobCache(
+                Long.parseLong(properties.getProperty("server.blobcache.bytes", String.valueOf(DEFAULT_MAX_BYTES)).trim()),
+                Long.parseLong(properties.getProperty("server.blobcache.maxfile", String.valueOf(DEFAULT_MAX_FILE_BYTES)).trim()));
+    }
+
+    /**
+     * The contents of a file, read and cached if it is small enough and not cached yet
+     * @return a read-only buffer of its own, null if the file is too large or cannot be read
+     */
+    public ByteBuffer load(File file) {
+        if (file == null) return null;
+        ByteBuffer contents;
+        synchronized (this) {
+            contents = entries.get(file);
+        }
+        if (contents != null) {
+            hits.incrementAndGet();
+            return contents.duplicate();
+        }
+        misses.incrementAndGet();
+        if (maxFileBytes <= 0) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxFileBytes) return null;
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException(file.getName() + " is shorter than " + size + " bytes");
+            }
+            buffer.flip();
+            contents = put(file, buffer.asReadOnlyBuffer());
+        } catch (IOException e) {
+            System.err.println("Failed to cache " + file + ": " + e.getMessage());
+            return null;
+        }
+        return contents.duplicate();
+    }
+
+    /**
+     * Keep the contents, unless another thread loaded the same file meanwhile
+     * @return the cached contents
+     */
+    private synchronized ByteBuffer put(File file, ByteBuffer contents) {
+        ByteBuffer cached = entries.get(file);
+        if (cached != null) return cached;
+        entries.put(file, contents);
+        bytes += contents.capacity();
+        Iterator<Map.Entry<File, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            ByteBuffer evicted = eldest.next().getValue();
+            if (evicted == contents) break; // never the one just loaded, it fits on its own
+            bytes -= evicted.capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+        return contents;
+    }
+
+    /**
+     * Forget a file that was deleted, so its memory is freed before it would be evicted
+     */
+    public synchronized void invalidate(File file) {
+        ByteBuffer removed = entries.remove(file);
+        if (removed != null) bytes -= removed.capacity();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long byteCount() {
+        return bytes;
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers of one size reused across file transfers, so sending a file allocates nothing per chunk.
+ * Buffers released beyond the pool's capacity are left to the GC.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param capacity buffers kept for reuse
+     * @param direct allocate off-heap, for channels; heap buffers for streams that need an array
+     */
+    BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.direct = direct;
+    }
+
+    /**
+     * A cleared buffer of {@link #bufferSize()} bytes
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+        if (freeCount.incrementAndGet() <= capacity) {
+            free.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Buffers allocated so far, pooled or not
+     */
+    int allocatedCount() {
+        return allocated.get();
+    }
+}
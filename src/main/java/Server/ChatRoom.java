@@ -1,25 +1,45 @@
 package Server;
 
+import Utils.Tls;
+
 import java.io.IOException;
 import java.util.*;
 
+/**
+ * The server of this process, hosting the lobby named here and the rooms its users create
+ */
 public class ChatRoom {
     public static String name;
     private static int localPort;
-    public static List<String> msgList;
-    private static Server server;
+    private static ChatServer server;
 
     public static void create(String name, int localPort) {
+        create(name, localPort, ServerMode.THREAD_PER_CONNECTION);
+    }
+
+    public static void create(String name, int localPort, ServerMode mode) {
         ChatRoom.name = name;
         ChatRoom.localPort = localPort;
-        ChatRoom.msgList = new LinkedList<>();
         try {
-            server = new Server(localPort, name);
+            if (mode == ServerMode.NIO) {
+                server = new NioServer(localPort, name);
+            } else {
+                server = new Server(localPort, name, mode == ServerMode.VIRTUAL_THREADS);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Host a server that is already running, e.g. one built with its own configuration
+     */
+    public static void create(String name, ChatServer server) {
+        ChatRoom.name = name;
+        ChatRoom.localPort = server.getServerLocalPort();
+        ChatRoom.server = server;
+    }
+
     public static void close() {
         try {
             server.shutdown();
@@ -36,11 +56,55 @@ public class ChatRoom {
         System.out.println();
         System.out.println("Chatroom: "+ name);
         System.out.println("Concurrent Users: " + server.currentClients() + " | Port: " + localPort);
+        HeartbeatWheel heartbeats = server.getHeartbeatWheel();
+        System.out.println("Heartbeat: " + heartbeats.trackedCount() + " tracked | " + heartbeats.expiredCount() + " expired");
+        int queued = 0;
+        long dropped = 0;
+        for (OutboundQueue queue : server.getOutboundQueues()) {
+            queued += queue.depth();
+            dropped += queue.droppedCount();
+            if (queue.isLagging() || queue.isEvicted()) {
+                System.out.println("  " + queue.getName() + (queue.isEvicted() ? " evicted" : " lagging") + ", " + queue.depth() + " queued");
+            }
+        }
+        System.out.println("Outbound: " + queued + " queued | " + dropped + " dropped");
+        List<Room> rooms = server.getRooms().all();
+        System.out.println("Rooms: " + rooms.size());
+        for (Room room : rooms) {
+            if (room.memberCount() > 0 || room.backlog() > 0) {
+                System.out.println("  " + room.name() + ": " + room.memberCount() + " members, " + room.backlog() + " queued");
+            }
+        }
+        Cluster cluster = server.getRooms().cluster();
+        if (cluster != null) {
+            System.out.println("Cluster: node " + cluster.node() + " of " + cluster.size() + " | " + cluster.linksUp() + " links up | "
+                    + cluster.forwardedCount() + " forwarded | " + cluster.relayedCount() + " relayed | " + cluster.queuedCount() + " queued | "
+                    + cluster.duplicateCount() + " duplicates | " + cluster.droppedCount() + " dropped");
+        }
+        Tls.Handshakes handshakes = Tls.SERVER_HANDSHAKES;
+        System.out.printf("TLS: %d full handshakes | %d resumed (%.0f%%)%n", handshakes.fullCount(), handshakes.resumedCount(),
+                handshakes.resumedRatio() * 100);
+        AuthService auth = server.getAuth();
+        System.out.println("Auth: " + auth.queuedCount() + " queued | " + auth.rejectedCount() + " turned away");
+        ConnectionPool pool = server.getDatabase().getPool();
+        System.out.printf("Database: %d active | %d idle | %.1f ms avg wait | %d timeouts%n",
+                pool.activeCount(), pool.idleCount(), pool.averageWaitMillis(), pool.timeoutCount());
+        AttachmentCache attachments = server.getDatabase().getAttachmentCache();
+        System.out.println("Attachment cache: " + attachments.size() + " entries | " + attachments.byteCount() / 1024 + " KB | "
+                + attachments.hitCount() + " hits | " + attachments.missCount() + " misses | " + attachments.evictionCount() + " evicted");
+        BlobCache blobs = server.getDatabase().getBlobCache();
+        System.out.println("Blob cache: " + blobs.size() + " files | " + blobs.byteCount() / 1024 + " KB | "
+                + blobs.hitCount() + " hits | " + blobs.missCount() + " misses | " + blobs.evictionCount() + " evicted");
+        MessageWriter messages = server.getMessageWriter();
+        System.out.println("Persistence: " + messages.pendingCount() + " pending | " + messages.writtenCount() + " saved | " + messages.failedCount() + " failed");
         System.out.println("----------------------------");
-        for (String msg : msgList) System.out.println(msg);
+        for (String msg : recentMessages()) System.out.println(msg);
     }
 
-    public static void saveMsg(String msg) {
-        msgList.add(msg);
+    /**
+     * The messages of the lobby kept in memory, as "sender: message", oldest first
+     */
+    public static List<String> recentMessages() {
+        return server.getRooms().lobby().recentMessages();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package Server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Common view of a chatroom server engine, whatever {@link ServerMode} it runs on.
+ */
+public interface ChatServer {
+
+    /**
+     * The rooms hosted by this server, sessions start in its lobby
+     */
+    Rooms getRooms();
+
+    int currentClients();
+
+    /**
+     * The liveness tracker of all sessions on this server
+     */
+    HeartbeatWheel getHeartbeatWheel();
+
+    /**
+     * The data access object shared by all sessions of this server
+     */
+    DatabaseConnection getDatabase();
+
+    /**
+     * The write-behind stage saving this server's messages
+     */
+    MessageWriter getMessageWriter();
+
+    /**
+     * The password checks and session tokens of this server
+     */
+    AuthService getAuth();
+
+    /**
+     * The outbound queues of the connected sessions, for monitoring depth and evictions
+     */
+    List<OutboundQueue> getOutboundQueues();
+
+    void shutdown() throws IOException, InterruptedException;
+
+    int getServerLocalPort();
+}
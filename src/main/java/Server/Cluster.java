@@ -0,0 +1,571 @@
+package Server;
+
+import Utils.Frame;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Several servers sharing their rooms. Every node lists the same nodes in cluster.nodes, and each room is
+ * sequenced by one of them, its owner: the other nodes forward what their users send in the room to the owner,
+ * which delivers it to its members, saves it and relays it to every other node, which delivers it in the order
+ * it came. So users on all nodes see one conversation in one order, saved once in the database the nodes share.
+ * <p>
+ * Nodes talk over plain TCP links, one from each node to each other one, on the address listed for the receiving
+ * node, which it listens on alone. A node accepts a link only from a node proving it knows cluster.secret: it sends
+ * a random challenge, the other answers with the challenge's HMAC-SHA256 under the secret. The links are not
+ * encrypted, so keep them on a trusted network all the same. A link that drops is reconnected and writes again what the other node
+ * had not acknowledged, so every message carries an id and one that arrives twice is dropped: a forwarded message
+ * by its node and the number that node gave it, a relayed one by the owner's run and its position in the room.
+ */
+public class Cluster {
+    public static final int DEFAULT_QUEUE = 10_000;
+    static final int HEARTBEAT_MILLIS = 5_000; // an idle link pings, a silent one is dropped after three
+    static final int RETRY_MILLIS = 1_000;
+
+    // what a link sends, the first byte of each message
+    private static final byte HELLO = 0;   // node, run, HMAC of the challenge, node and run
+    private static final byte FORWARD = 1; // run, number, room, room name, sender, message, id it was saved with or -1
+    private static final byte RELAY = 2;   // run, position, room, room name, sender, message
+    private static final byte SAVED = 3;   // run, position, room, message id, node that saved it
+    private static final byte PING = 4;
+    private static final int ACK_EVERY = 256; // messages read before acknowledging them even while more are waiting
+    private static final int ACK_POLL_MILLIS = 10; // how often a link waiting for an ack looks for one
+    private static final int CHALLENGE_BYTES = 32;
+    private static final String MAC = "HmacSHA256";
+
+    private final int node;
+    private final List<InetSocketAddress> nodes;
+    private final long run = System.currentTimeMillis(); // tells this run of the node from earlier ones
+    private final SecretKeySpec secret; // cluster.secret, shared by the nodes
+    private final SecureRandom random = new SecureRandom();
+    private final Rooms rooms;
+    private final int queue;
+    private final Link[] links; // to each other node, null for this one
+    private final Map<Integer, long[]> lastForwarded = new HashMap<>(); // by node: its run and the last number seen
+    private final AtomicLong forwardNumbers = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Set<Socket> peers = ConcurrentHashMap.newKeySet(); // links from other nodes
+    private volatile ServerSocket listener;
+    private volatile boolean running = true;
+
+    Cluster(int node, List<InetSocketAddress> nodes, int queue, String secret, Rooms rooms) {
+        this.node = node;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC);
+        this.nodes = nodes;
+        this.rooms = rooms;
+        this.queue = Math.max(1, queue);
+        this.links = new Link[nodes.size()];
+        for (int i = 0; i < links.length; i++) {
+            if (i != node) links[i] = new Link(i, nodes.get(i), this.queue);
+        }
+    }
+
+    /**
+     * Read cluster.nodes (host:port of each node's links, the same list on every node), cluster.node
+     * (this node's place in it, from 0), cluster.secret and cluster.queue from the configuration
+     * @return null if the server runs alone
+     */
+    static Cluster fromProperties(Properties properties, Rooms rooms) {
+        String list = properties.getProperty("cluster.nodes", "").trim();
+        if (list.isEmpty()) return null;
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String address : list.split(",")) {
+            String[] hostPort = address.trim().split(":");
+            nodes.add(InetSocketAddress.createUnresolved(hostPort[0], Integer.parseInt(hostPort[1])));
+        }
+        int node = Integer.parseInt(properties.getProperty("cluster.node", "0").trim());
+        if (node < 0 || node >= nodes.size()) throw new IllegalArgumentException("cluster.node " + node + " is not in cluster.nodes");
+        String secret = properties.getProperty("cluster.secret", "").trim();
+        if (secret.isEmpty()) throw new IllegalArgumentException("cluster.secret is not set, the nodes could not tell each other from anyone else");
+        int queue = Integer.parseInt(properties.getProperty("cluster.queue", String.valueOf(DEFAULT_QUEUE)).trim());
+        return new Cluster(node, nodes, queue, secret, rooms);
+    }
+
+    /**
+     * Listen for the other nodes and start connecting to them
+     */
+    void start() throws IOException {
+        InetSocketAddress address = nodes.get(node);
+        listener = new ServerSocket(address.getPort(), 50, InetAddress.getByName(address.getHostString()));
+        Thread acceptor = new Thread(this::accept, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Link link : links) {
+            if (link != null) link.start();
+        }
+        System.out.println("Cluster: node " + node + " of " + nodes.size() + ", links on port " + listener.getLocalPort());
+    }
+
+    /**
+     * Whether this node sequences the room's messages
+     */
+    public boolean owns(int roomId) {
+        return Math.floorMod(roomId, nodes.size()) == node;
+    }
+
+    /**
+     * Send a message of a room this node does not own to its owner
+     * @param messageId the id this node saved it with, -1 for the owner to save it
+     */
+    void forward(Room room, String from, String msg, int messageId) {
+        long number = forwardNumbers.incrementAndGet();
+        links[Math.floorMod(room.id(), nodes.size())].send(encode(FORWARD, out -> {
+            out.writeLong(run);
+            out.writeLong(number);
+            writeRoom(out, room);
+            out.writeUTF(from);
+            writeText(out, msg);
+            out.writeInt(messageId);
+        }));
+        forwarded.incrementAndGet();
+    }
+
+    /**
+     * Send a message this node sequenced to every other node
+     * @param position its position in the room's history on this node
+     */
+    void relay(Room room, long position, String from, String msg) {
+        sendAll(encode(RELAY, out -> {
+            out.writeLong(run);
+            out.writeLong(position);
+            writeRoom(out, room);
+            out.writeUTF(from);
+            writeText(out, msg);
+        }));
+        relayed.incrementAndGet();
+    }
+
+    /**
+     * Tell the other nodes the database id of a message relayed to them, -1 if saving it failed
+     * @param savedBy the node that saved it
+     */
+    void saved(Room room, long position, int messageId, int savedBy) {
+        sendAll(encode(SAVED, out -> {
+            out.writeLong(run);
+            out.writeLong(position);
+            out.writeInt(room.id());
+            out.writeInt(messageId);
+            out.writeInt(savedBy);
+        }));
+    }
+
+    /**
+     * Count a relayed message that arrived a second time
+     */
+    void duplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    private void sendAll(byte[] message) {
+        for (Link link : links) {
+            if (link != null) link.send(message);
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                peers.add(socket);
+                Thread reader = new Thread(() -> serve(socket), "cluster-peer-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) System.err.println("Cluster: failed to accept a node: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read what another node sends over its link to this one, until it closes; acknowledge what was read
+     * whenever nothing more is waiting, so the other node can stop keeping it for a resend
+     */
+    private void serve(Socket socket) {
+        int from = -1;
+        try (Socket closing = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(closing.getInputStream()));
+             DataOutputStream acks = new DataOutputStream(closing.getOutputStream())) {
+            socket.setSoTimeout(HEARTBEAT_MILLIS * 3);
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            acks.write(challenge);
+            acks.flush();
+            if (in.readByte() != HELLO) throw new IOException("not a cluster node");
+            int claimed = in.readInt();
+            long claimedRun = in.readLong(); // forwarded messages carry it
+            byte[] proof = new byte[CHALLENGE_BYTES];
+            in.readFully(proof);
+            if (!MessageDigest.isEqual(proof, prove(challenge, claimed, claimedRun))) {
+                System.err.println("Cluster: " + socket.getRemoteSocketAddress() + " does not know cluster.secret, refused");
+                return;
+            }
+            from = claimed;
+            System.out.println("Cluster: node " + from + " connected");
+            long received = 0;
+            long acked = 0;
+            while (running) {
+                byte kind = in.readByte();
+                if (kind == FORWARD) {
+                    long run = in.readLong();
+                    long number = in.readLong();
+                    Room room = readRoom(in);
+                    String sender = in.readUTF();
+                    String msg = readText(in);
+                    int messageId = in.readInt();
+                    if (!first(from, run, number)) duplicates.incrementAndGet();
+                    else if (room != null) room.forwarded(sender, msg, messageId, from);
+                } else if (kind == RELAY) {
+                    long run = in.readLong();
+                    long position = in.readLong();
+                    Room room = readRoom(in);
+                    String sender = in.readUTF();
+                    String msg = readText(in);
+                    if (room != null) room.relayed(run, position, sender, msg);
+                } else if (kind == SAVED) {
+                    long run = in.readLong();
+                    long position = in.readLong();
+                    Room room = rooms.byId(in.readInt());
+                    int messageId = in.readInt();
+                    int savedBy = in.readInt();
+                    if (room != null) room.savedElsewhere(run, position, messageId, savedBy);
+                } else if (kind != PING) {
+                    throw new IOException("unknown message " + kind);
+                }
+                if (kind != PING) received++;
+                if (received > acked && (in.available() == 0 || received - acked >= ACK_EVERY)) {
+                    acks.writeLong(received);
+                    acks.flush();
+                    acked = received;
+                }
+            }
+        } catch (EOFException ignored) {
+        } catch (SocketTimeoutException e) {
+            System.err.println("Cluster: node " + from + " went silent");
+        } catch (IOException e) {
+            if (running) System.err.println("Cluster: link from node " + from + " failed: " + e.getMessage());
+        } finally {
+            peers.remove(socket);
+        }
+        if (from >= 0 && running) System.out.println("Cluster: node " + from + " disconnected");
+    }
+
+    /**
+     * What a node connecting as node, in its run, answers the challenge with: the HMAC of all three under the secret
+     */
+    private byte[] prove(byte[] challenge, int node, long run) {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(secret);
+            mac.update(challenge);
+            return mac.doFinal(ByteBuffer.allocate(12).putInt(node).putLong(run).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC + " is not available", e); // every JRE has it
+        }
+    }
+
+    /**
+     * Whether a forwarded message is new: numbers from a node only go up within its run
+     */
+    private synchronized boolean first(int from, long run, long number) {
+        long[] last = lastForwarded.get(from);
+        if (last == null || run > last[0]) {
+            lastForwarded.put(from, new long[]{run, number});
+            return true;
+        }
+        if (run < last[0] || number <= last[1]) return false;
+        last[1] = number;
+        return true;
+    }
+
+    private static void writeRoom(DataOutputStream out, Room room) throws IOException {
+        out.writeInt(room.id());
+        out.writeUTF(room.name());
+    }
+
+    /**
+     * The room a message is for, by its id in the shared database; created here if nobody joined it yet
+     */
+    private Room readRoom(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String name = in.readUTF();
+        Room room = rooms.byId(id);
+        if (room != null) return room;
+        room = rooms.get(name);
+        if (room == null || room.id() != id) {
+            System.err.println("Cluster: room " + name + " is " + (room == null ? "unknown" : room.id()) + " here, not " + id
+                    + "; do the nodes share a database?");
+            return null;
+        }
+        return room;
+    }
+
+    // message texts can be longer than writeUTF allows
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD) throw new IOException("Bad message length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(byte kind, Fields fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not from a byte array
+        }
+        return bytes.toByteArray();
+    }
+
+    public int node() {
+        return node;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Messages a link keeps for a node that is not reading them, cluster.queue
+     */
+    public int queueCapacity() {
+        return queue;
+    }
+
+    /**
+     * Links to other nodes that are connected
+     */
+    public int linksUp() {
+        int up = 0;
+        for (Link link : links) {
+            if (link != null && link.up) up++;
+        }
+        return up;
+    }
+
+    /**
+     * Messages waiting for a link to their node
+     */
+    public int queuedCount() {
+        int queued = 0;
+        for (Link link : links) {
+            if (link != null) queued += link.backlog();
+        }
+        return queued;
+    }
+
+    public long forwardedCount() {
+        return forwarded.get();
+    }
+
+    public long relayedCount() {
+        return relayed.get();
+    }
+
+    public long duplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * Messages dropped because a node was unreachable for longer than its queue lasts
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop listening and close the links, after giving them a moment to send what is queued
+     */
+    void shutdown() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RETRY_MILLIS;
+        while (queuedCount() > 0 && linksUp() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {
+        }
+        for (Link link : links) {
+            if (link != null) link.close();
+        }
+        for (Socket peer : peers) {
+            try {
+                peer.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The link from this node to another one: a queue of messages and a thread writing them, reconnecting
+     * whenever the connection is lost. Messages are kept until the other node acknowledges them and written
+     * again on the next connection if it did not, whether it was the connection or the node that went away.
+     */
+    private final class Link implements Runnable {
+        final int to;
+        final InetSocketAddress address;
+        final int capacity;
+        final BlockingQueue<byte[]> outbox;
+        final Thread thread;
+        volatile Socket socket;
+        volatile boolean up;
+
+        Link(int to, InetSocketAddress address, int capacity) {
+            this.to = to;
+            this.address = address;
+            this.capacity = capacity;
+            this.outbox = new LinkedBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "cluster-link-" + to);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Queue a message, dropping the oldest one if the node has been unreachable that long
+         */
+        void send(byte[] message) {
+            while (!outbox.offer(message)) {
+                if (outbox.poll() != null) dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            Deque<byte[]> unacked = new ArrayDeque<>(); // written, not acknowledged yet; only touched by this thread
+            while (running) {
+                try (Socket connection = new Socket()) {
+                    socket = connection;
+                    connection.connect(new InetSocketAddress(address.getHostString(), address.getPort()), RETRY_MILLIS);
+                    connection.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+                    byte[] challenge = new byte[CHALLENGE_BYTES];
+                    connection.setSoTimeout(HEARTBEAT_MILLIS);
+                    new DataInputStream(connection.getInputStream()).readFully(challenge);
+                    connection.setSoTimeout(0);
+                    AtomicLong acks = readAcks(connection);
+                    out.write(encode(HELLO, hello -> {
+                        hello.writeInt(node);
+                        hello.writeLong(run);
+                        hello.write(prove(challenge, node, run));
+                    }));
+                    for (byte[] message : unacked) out.write(message);
+                    out.flush();
+                    long acked = 0; // of the messages written on this connection, resent ones included
+                    long waiting = System.currentTimeMillis(); // since the last ack, or since there was something to ack
+                    if (!up) System.out.println("Cluster: connected to node " + to + " at " + address);
+                    up = true;
+                    while (running) {
+                        if (connection.isClosed()) throw new IOException("closed by node " + to);
+                        for (long ack = acks.get(); acked < ack; acked++) {
+                            unacked.poll();
+                            waiting = System.currentTimeMillis();
+                        }
+                        if (unacked.isEmpty()) {
+                            waiting = System.currentTimeMillis();
+                        } else if (System.currentTimeMillis() - waiting > HEARTBEAT_MILLIS) {
+                            throw new IOException("nothing acknowledged for " + HEARTBEAT_MILLIS + " ms");
+                        }
+                        byte[] message = outbox.poll(unacked.isEmpty() ? HEARTBEAT_MILLIS : ACK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            if (unacked.isEmpty()) out.write(PING);
+                            out.flush();
+                            continue;
+                        }
+                        if (unacked.size() >= capacity) { // a node that reads but never acknowledges
+                            unacked.poll();
+                            acked++;
+                            dropped.incrementAndGet();
+                        }
+                        unacked.add(message);
+                        out.write(message);
+                        if (outbox.isEmpty()) out.flush();
+                    }
+                } catch (IOException e) {
+                    if (up && running) System.err.println("Cluster: lost node " + to + ": " + e.getMessage());
+                    up = false;
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Read the other node's acks on a thread of their own, closing the connection when it does
+         * @return how many messages written on the connection were acknowledged so far
+         */
+        private AtomicLong readAcks(Socket connection) throws IOException {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            AtomicLong acks = new AtomicLong();
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) acks.set(in.readLong());
+                } catch (IOException ignored) {
+                } finally {
+                    try {
+                        connection.close(); // the writer finds out on its next turn
+                    } catch (IOException ignored) {
+                    }
+                }
+            }, "cluster-acks-" + to);
+            reader.setDaemon(true);
+            reader.start();
+            return acks;
+        }
+
+        /**
+         * Messages queued, not counting those waiting to be acknowledged
+         */
+        int backlog() {
+            return outbox.size();
+        }
+
+        void close() {
+            thread.interrupt();
+            try {
+                Socket current = socket;
+                if (current != null) current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size pool of JDBC connections, for MySQL and SQLite alike.
+ * <p>
+ * {@link #borrow()} hands out a wrapper whose close() returns the connection to the pool, so callers keep
+ * using try-with-resources. Connections idle for a while are validated before reuse, and closed by a
+ * background evictor once idle longer than the idle timeout. A caller waits at most the acquire timeout
+ * for a free connection before getting an {@link SQLTimeoutException}.
+ * <p>
+ * Each connection also keeps the statements prepared on it: preparing the same SQL again returns the
+ * cached statement, and closing it only hands it back to the cache.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_SIZE = 8;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5_000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60_000;
+    private static final long VALIDATE_AFTER_MILLIS = 5_000; // connections used more recently are trusted
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final int STATEMENT_CACHE_SIZE = 32; // per connection
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int size;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>(); // most recently used first
+    private final ScheduledExecutorService evictor;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private volatile boolean closed;
+
+    public ConnectionPool(ConnectionFactory factory, int size, long acquireTimeoutMillis, long idleTimeoutMillis) {
+        this.factory = factory;
+        this.size = Math.max(1, size);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(this.size, true);
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take a connection, waiting up to the acquire timeout for one to be returned
+     * @return a connection that goes back to the pool when closed
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        acquired.incrementAndGet();
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) pooled = new PooledConnection(factory.create());
+            active.incrementAndGet();
+            return wrap(pooled);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.since < VALIDATE_AFTER_MILLIS) return pooled;
+            try {
+                if (pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) return pooled;
+            } catch (SQLException ignored) {
+            }
+            closeQuietly(pooled.connection); // broken, e.g. closed by the server after wait_timeout
+        }
+        return null;
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        Connection connection = pooled.connection;
+        try {
+            if (closed || connection.isClosed()) {
+                closeQuietly(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) { // left inside a transaction
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            pooled.since = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            PooledConnection pooled = oldestFirst.next();
+            if (now - pooled.since < idleTimeoutMillis) break;
+            if (idle.remove(pooled)) closeQuietly(pooled.connection);
+        }
+    }
+
+    private Connection wrap(PooledConnection pooled) {
+        Connection connection = pooled.connection;
+        AtomicBoolean returned = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (returned.compareAndSet(false, true)) release(pooled);
+                            return null;
+                        case "isClosed":
+                            return returned.get() || connection.isClosed();
+                        case "prepareStatement":
+                            if (returned.get()) throw new SQLException("Connection has been returned to the pool");
+                            if (args.length == 1) return pooled.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                            if (args.length == 2 && args[1] instanceof Integer) return pooled.prepare((String) args[0], (Integer) args[1]);
+                            break;
+                        case "unwrap":
+                        case "isWrapperFor":
+                        case "toString":
+                        case "hashCode":
+                        case "equals":
+                            break;
+                        default:
+                            if (returned.get()) throw new SQLException("Connection has been returned to the pool");
+                    }
+                    return invoke(connection, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Connections currently borrowed
+     */
+    public int activeCount() {
+        return active.get();
+    }
+
+    /**
+     * Open connections waiting in the pool
+     */
+    public int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Callers currently waiting for a connection
+     */
+    public int waitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Average time spent waiting for a connection, in milliseconds
+     */
+    public double averageWaitMillis() {
+        long count = acquired.get() + timeouts.get();
+        return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+    }
+
+    public long timeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Statements taken from a connection's cache instead of being prepared again
+     */
+    public long statementCacheHits() {
+        return statementHits.get();
+    }
+
+    public long statementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) closeQuietly(pooled.connection);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * A physical connection and its prepared statements, only used by one borrower at a time
+     */
+    private final class PooledConnection {
+        final Connection connection;
+        final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) return false;
+                if (!eldest.getValue().inUse) closeQuietly(eldest.getValue().statement);
+                return true;
+            }
+        };
+        volatile long since = System.currentTimeMillis();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys + ":" + sql;
+            CachedStatement cached = statements.get(key);
+            if (cached != null && !cached.inUse && !cached.statement.isClosed()) {
+                statementHits.incrementAndGet();
+                cached.statement.clearParameters();
+            } else if (cached != null && cached.inUse) {
+                // the same SQL is already open on this connection, don't share its statement
+                return connection.prepareStatement(sql, autoGeneratedKeys);
+            } else {
+                statementMisses.incrementAndGet();
+                cached = new CachedStatement(connection.prepareStatement(sql, autoGeneratedKeys));
+                statements.put(key, cached);
+            }
+            cached.inUse = true;
+            return cached.handle();
+        }
+    }
+
+    private static final class CachedStatement {
+        final PreparedStatement statement;
+        boolean inUse;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        /**
+         * A view of the statement whose close() puts it back in the cache
+         */
+        PreparedStatement handle() {
+            AtomicBoolean closed = new AtomicBoolean();
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (closed.compareAndSet(false, true)) {
+                                    ResultSet results = statement.getResultSet();
+                                    if (results != null) results.close(); // an open cursor would hold SQLite's read lock
+                                    statement.clearBatch();
+                                    inUse = false;
+                                }
+                                return null;
+                            case "isClosed":
+                                return closed.get() || statement.isClosed();
+                            default:
+                                if (closed.get()) throw new SQLException("Statement is closed");
+                                return invoke(statement, method, args);
+                        }
+                    });
+        }
+    }
+}
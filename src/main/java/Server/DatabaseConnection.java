@@ -1,13 +1,20 @@
 package Server;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
-import java.time.LocalDate;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 import static Utils.ResourceLoader.loadProperties;
 import static Utils.ResourceLoader.loadResource;
 
@@ -15,19 +22,30 @@ import org.mindrot.jbcrypt.BCrypt;
 
 public class DatabaseConnection {
 
-    boolean isMySQL = true; // false if using SQLite
+    boolean isMySQL = true; // false if using SQLite, set by db.type in config.properties
     private final String DB_URL;
     private String USER;
     private String PASS;
     private final String SQL_FILEPATH; // Change path in config.properties
 
     private final String FILE_PATH;
-    private final String TMP_PATH;
+    private final String STAGING_PATH; // uploads in progress, on the same volume as FILE_PATH
+    private final ConnectionPool pool; // shared by every operation of this server
+    // by digest, saves of the same contents take turns; Locks rather than synchronized so virtual threads
+    // doing JDBC and file moves while holding one don't pin their carrier
+    private final Lock[] blobLocks = new Lock[64];
+    private final AttachmentCache attachmentCache; // file paths by attachment id
+    private final BlobCache blobCache; // contents of small attachments
+    private final MessageSearch search; // full-text index of the messages, opened by the server
 
 
     public DatabaseConnection() {
+        this(loadProperties());
+    }
+
+    public DatabaseConnection(Properties properties) {
         // TODO: change to your MySQL database settings in config.properties
-        Properties properties = loadProperties();
+        isMySQL = !"sqlite".equalsIgnoreCase(properties.getProperty("db.type", "mysql").trim());
         if(isMySQL){
             DB_URL = properties.getProperty("db.url");
             USER = properties.getProperty("db.user");
@@ -37,23 +55,76 @@ public class DatabaseConnection {
             DB_URL = properties.getProperty("sqlite.url");
         }
         SQL_FILEPATH = properties.getProperty("db.sql.file");
+        for (int i = 0; i < blobLocks.length; i++) blobLocks[i] = new ReentrantLock();
+        attachmentCache = AttachmentCache.fromProperties(properties);
+        blobCache = BlobCache.fromProperties(properties);
+        // FTS5 ships with the SQLite driver; elsewhere, or with db.search=memory, the index is kept in memory
+        String searchType = properties.getProperty("db.search", isMySQL ? "memory" : "fts5").trim();
+        search = !isMySQL && "fts5".equalsIgnoreCase(searchType) ? new FtsSearch(this) : new InvertedIndex(this);
         FILE_PATH = properties.getProperty("server.filedir");
-        TMP_PATH = properties.getProperty("server.tmpdir");
+        STAGING_PATH = properties.getProperty("server.stagingdir", FILE_PATH + ".staging/");
+        pool = new ConnectionPool(this::openConnection,
+                Integer.parseInt(properties.getProperty("db.pool.size", String.valueOf(ConnectionPool.DEFAULT_SIZE)).trim()),
+                Long.parseLong(properties.getProperty("db.pool.timeout", String.valueOf(ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS)).trim()),
+                Long.parseLong(properties.getProperty("db.pool.idle", String.valueOf(ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS)).trim()));
     }
 
+    /**
+     * Borrow a connection from the pool, closing it returns it
+     */
     public Connection connect() throws SQLException {
+        return pool.borrow();
+    }
+
+    private Connection openConnection() throws SQLException {
         if(isMySQL){
             return DriverManager.getConnection(DB_URL, USER, PASS);
         } else {
-            return DriverManager.getConnection(DB_URL);
+            Properties sqliteProperties = new Properties();
+            sqliteProperties.setProperty("busy_timeout", "5000"); // pooled connections wait for each other's writes
+            return DriverManager.getConnection(DB_URL, sqliteProperties);
         }
     }
 
+    /**
+     * Directory where uploads are written until saveUpload renames them into the attachment storage
+     */
+    public String getStagingPath() {
+        return STAGING_PATH;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public AttachmentCache getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    public BlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    public MessageSearch getSearch() {
+        return search;
+    }
+
+    /**
+     * Messages of a room containing every word of the query, best match first
+     */
+    public MessageSearch.Results searchMessages(int roomId, String query, int offset, int limit) {
+        return search.search(roomId, query, offset, limit);
+    }
+
+    public void close() {
+        pool.close();
+    }
+
     public void createUser(String username, String password) throws SQLException {
+        String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(10)); // before borrowing a connection, it is slow
         try(Connection conn = connect()) {
             String sql = "INSERT INTO users (username, password) VALUES (?, ?)";
             try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(10));
                 pstmt.setString(1, username);
                 pstmt.setString(2, hashedPassword);
                 pstmt.executeUpdate();
@@ -62,46 +133,127 @@ public class DatabaseConnection {
     }
 
     public boolean verifyUser(String username, String password) {
+        String hashedPassword = null;
         try (Connection conn = connect()) {
             String sql = "SELECT password FROM users WHERE username = ?";
             try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
                 pstmt.setString(1, username);
                 try (ResultSet rs = pstmt.executeQuery()) {
-                    if (rs.next()) {
-                        String hashedPassword = rs.getString("password");
-                        return BCrypt.checkpw(password, hashedPassword);
-                    }
+                    if (rs.next()) hashedPassword = rs.getString("password");
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;  //should not reach here
+        // the connection is back in the pool while bcrypt runs
+        return hashedPassword != null && BCrypt.checkpw(password, hashedPassword);
     }
 
-    public int saveMsg(String username, String message) {
-        int msgId = -1;
+    /**
+     * The id of the room with this name, created if there is none
+     * @return -1 if it could not be read or created
+     */
+    public int roomId(String name) {
         try (Connection conn = connect()) {
-            String sql = "INSERT INTO messages (room_id, sender, message) VALUES (?, ?, ?)";
-            try (PreparedStatement pstmt = conn.prepareStatement(sql,PreparedStatement.RETURN_GENERATED_KEYS)) {
-                pstmt.setInt(1, 1); // room_id is 1 for default chat room
-                pstmt.setString(2, username);
-                pstmt.setString(3, message);
-                // time is stored as current timestamp by default
+            // rooms.name is not unique, the first room of a name is the one
+            int id = firstRoom(conn, name);
+            if (id > 0) return id;
+            try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO rooms (name) VALUES (?)")) {
+                pstmt.setString(1, name);
                 pstmt.executeUpdate();
+            }
+            id = firstRoom(conn, name); // another server sharing the database may have created it meanwhile
+            if (id > 0) return id;
+        } catch (SQLException e) {
+            System.err.println("Failed to create room " + name + ": " + e.getMessage());
+        }
+        return -1;
+    }
+
+    private static int firstRoom(Connection conn, String name) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT MIN(rid) FROM rooms WHERE name = ?")) {
+            pstmt.setString(1, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Save several messages in one multi-row insert
+     * @param roomIds room of each message
+     * @return the message ids, in the order of the arguments
+     */
+    public int[] saveMsgs(int[] roomIds, String[] senders, String[] messages) throws SQLException {
+        int count = senders.length;
+        int[] ids = new int[count];
+        StringBuilder sql = new StringBuilder("INSERT INTO messages (room_id, sender, message) VALUES ");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+        }
+
+        try (Connection conn = connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString(), PreparedStatement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < count; i++) {
+                pstmt.setInt(3 * i + 1, roomIds[i]);
+                pstmt.setString(3 * i + 2, senders[i]);
+                pstmt.setString(3 * i + 3, messages[i]);
+            }
+            pstmt.executeUpdate();
 
-                ResultSet rs = pstmt.getGeneratedKeys();
-                if (rs.next()) {
-                    msgId = rs.getInt(1);
+            int returned = 0;
+            int last = -1;
+            try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                while (rs.next()) {
+                    last = rs.getInt(1);
+                    if (returned < count) ids[returned++] = last;
+                }
+            }
+            if (returned < count) {
+                // SQLite only reports the last rowid, the rows of one insert get consecutive ids
+                for (int i = 0; i < count; i++) {
+                    ids[i] = last == -1 ? -1 : last - count + 1 + i;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) search.add(ids[i], roomIds[i], messages[i]);
+        return ids;
+    }
+
+    /**
+     * A page of a room's history: the messages saved before a given one, found through the index on
+     * (room_id, mid), so a page costs the same however far back it is
+     * @param beforeId only messages with a lower id, Integer.MAX_VALUE for the latest
+     * @return up to limit messages, the previous page starting before the oldest of them
+     */
+    public HistoryPage loadMessages(int roomId, int beforeId, int limit) {
+        LinkedList<String> messages = new LinkedList<>();
+        int oldest = 0;
+        String sql = "SELECT mid, sender, message FROM messages WHERE room_id = ? AND mid < ? ORDER BY mid DESC LIMIT ?";
+        try (Connection conn = connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, roomId);
+            pstmt.setInt(2, beforeId);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    oldest = rs.getInt("mid");
+                    messages.addFirst(rs.getString("sender") + ": " + rs.getString("message"));
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Failed to save message: " + e.getMessage());
+            System.err.println("Failed to load messages: " + e.getMessage());
         }
-        return msgId;
+        return new HistoryPage(messages, messages.size() < limit ? 0 : oldest);
     }
 
+    /**
+     * Where an attachment is stored, from the cache when it was looked up recently
+     * @return null if there is no such attachment
+     */
     public File getFile(int attachmentId) {
+        File cached = attachmentCache.get(attachmentId);
+        if (cached != null) return cached;
         try (Connection conn = connect()) {
             String sql = "SELECT file_path FROM Attachments WHERE attachment_id = ?";
             try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -110,7 +262,9 @@ public class DatabaseConnection {
                     if (rs.next()) {
                         String filePath = rs.getString("file_path");
                         System.out.println("File path: " + filePath);
-                        return new File(filePath);
+                        File file = new File(filePath);
+                        if (!filePath.isEmpty()) attachmentCache.put(attachmentId, file); // empty if the file was never stored
+                        return file;
                     }
                 }
             }
@@ -121,69 +275,243 @@ public class DatabaseConnection {
     }
 
 
-    public void linkFile(int msgId, int attachmentId) {
-        try (Connection conn = connect()) {
-            String updateSql = "UPDATE Attachments SET message_id = ? WHERE attachment_id = ?";
-            try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-                pstmt.setInt(1, msgId);
-                pstmt.setInt(2, attachmentId);
-                pstmt.executeUpdate();
-            }
-        } catch (SQLException e) {
-            System.err.println("Failed to link file: " + e.getMessage());
+    /**
+     * What saving an upload created: its attachment and the message announcing it
+     */
+    public static final class SavedUpload {
+        private final int attachmentId;
+        private final int messageId;
+
+        SavedUpload(int attachmentId, int messageId) {
+            this.attachmentId = attachmentId;
+            this.messageId = messageId;
+        }
+
+        public int attachmentId() {
+            return attachmentId;
+        }
+
+        public int messageId() {
+            return messageId;
         }
     }
-    public int saveFile(String filename, String fileType) {
-        int attachmentId = -1;
-        try (Connection conn = connect()) {
-            // 1.insert a new record to get attachment_id
-            String sql = "INSERT INTO Attachments (file_name, message_id, file_path, file_type) VALUES (?, 1, '', ?)";
-            String fileBaseName=  filename.split("_")[2]; // remove username and timestamp
 
-            try (PreparedStatement pstmt = conn.prepareStatement(sql,PreparedStatement.RETURN_GENERATED_KEYS)) {
-                pstmt.setString(1,fileBaseName);
-                pstmt.setString(2, fileType);
-                pstmt.executeUpdate();
+    /**
+     * Save an uploaded file, the message announcing it and the link between them in one transaction.
+     * The contents are stored once per digest as a blob under server.filedir/blobs/, counted by the
+     * attachments referring to it; an upload of stored contents only adds a reference.
+     * @param filename name of the uploaded file in the staging directory;
+     *                 it is renamed to the blob, deleted if the blob exists, or left there if nothing was saved
+     * @param baseName the file's name as the uploader gave it, kept with the attachment
+     * @param digest SHA-256 of the contents, see {@link Utils.Digests}
+     * @param roomId room the upload is announced in
+     * @param sender the uploading user
+     * @param message builds the announcement from the attachment id
+     * @return the ids of the attachment and the message, null if nothing was saved
+     * @throws NoSuchFileException if neither the blob nor the staging file has the contents, e.g. the upload
+     *                             was skipped and the last attachment referring to the blob was deleted since
+     */
+    public SavedUpload saveUpload(String filename, String baseName, String digest, String fileType, int roomId, String sender,
+                          IntFunction<String> message) throws NoSuchFileException {
+        Path staged = Paths.get(STAGING_PATH + filename);
+        Path blob = Paths.get(blobPath(digest));
 
-                // get the generated attachment_id
-                ResultSet rs = pstmt.getGeneratedKeys();
-                if (rs.next()) {
-                    attachmentId = rs.getInt(1);
+        Lock lock = blobLock(digest);
+        lock.lock(); // identical uploads save one at a time
+        try {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                boolean created = false;
+                boolean missing = false;
+                try (Connection conn = connect()) {
+                    conn.setAutoCommit(false);
+                    try {
+                        // write first, a SQLite transaction that starts with a read cannot wait for another writer
+                        boolean stored;
+                        String sql = "UPDATE blobs SET ref_count = ref_count + 1 WHERE digest = ?";
+                        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                            pstmt.setString(1, digest);
+                            stored = pstmt.executeUpdate() > 0;
+                        }
+                        Files.createDirectories(blob.getParent());
+                        if (!Files.exists(blob) && !Files.exists(staged)) {
+                            missing = true;
+                            throw new NoSuchFileException(blob.toString());
+                        }
+                        if (stored) {
+                            if (!Files.exists(blob) && Files.exists(staged)) moveIntoStorage(staged, blob); // the blob went missing
+                        } else {
+                            if (!Files.exists(blob)) {
+                                moveIntoStorage(staged, blob);
+                                created = true;
+                            }
+                            sql = "INSERT INTO blobs (digest, file_path, size, ref_count) VALUES (?, ?, ?, 1)";
+                            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                                pstmt.setString(1, digest);
+                                pstmt.setString(2, blob.toString());
+                                pstmt.setLong(3, Files.size(blob));
+                                pstmt.executeUpdate();
+                            }
+                        }
+
+                        int attachmentId = -1;
+                        sql = "INSERT INTO Attachments (file_name, message_id, file_path, file_type) VALUES (?, 1, ?, ?)";
+                        try (PreparedStatement pstmt = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+                            pstmt.setString(1, baseName);
+                            pstmt.setString(2, blob.toString());
+                            pstmt.setString(3, fileType);
+                            pstmt.executeUpdate();
+                            try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                                if (rs.next()) {
+                                    attachmentId = rs.getInt(1);
+                                }
+                            }
+                        }
+                        if (attachmentId == -1) throw new SQLException("No attachment id generated");
+
+                        int msgId = -1;
+                        String text = message.apply(attachmentId);
+                        sql = "INSERT INTO messages (room_id, sender, message) VALUES (?, ?, ?)";
+                        try (PreparedStatement pstmt = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+                            pstmt.setInt(1, roomId);
+                            pstmt.setString(2, sender);
+                            pstmt.setString(3, text);
+                            pstmt.executeUpdate();
+                            try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                                if (rs.next()) {
+                                    msgId = rs.getInt(1);
+                                }
+                            }
+                        }
+                        if (msgId == -1) throw new SQLException("No message id generated");
+
+                        sql = "UPDATE Attachments SET message_id = ? WHERE attachment_id = ?";
+                        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                            pstmt.setInt(1, msgId);
+                            pstmt.setInt(2, attachmentId);
+                            pstmt.executeUpdate();
+                        }
+                        conn.commit();
+                        search.add(msgId, roomId, text);
+                        Files.deleteIfExists(staged); // a duplicate of the blob
+                        System.out.println((created ? "File uploaded: " : "File already stored: ") + blob);
+                        return new SavedUpload(attachmentId, msgId);
+                    } catch (SQLException | IOException e) {
+                        conn.rollback();
+                        if (created) moveIntoStorage(blob, staged); // back where it came from
+                        // another server may have stored the same blob in between, then it is found on the retry
+                        if (attempt == 0 && e instanceof SQLException) continue;
+                        System.err.println("Failed to save upload: " + e.getMessage());
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                } catch (SQLException | IOException e) {
+                    System.err.println("Failed to save upload: " + e.getMessage());
                 }
+                if (missing) throw new NoSuchFileException(blob.toString(), null, "the contents are no longer stored");
+                return null;
             }
-            if (attachmentId == -1) {
-                System.err.println("Failed to insert attachment record.");
-                return -1;
-            }
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
 
-            // 2. save a new file name using attachment_id
-            String serverStoragePath = FILE_PATH + LocalDate.now() + "/"; // e.g., files/2021-09-01/
-            String extension = fileBaseName.substring(fileBaseName.lastIndexOf(".")); // (e.g., .png)
-            String newFileName = "attachment_" + attachmentId + extension; // e.g. attachment_1001.png
-            Path targetPath = Paths.get(serverStoragePath + newFileName);
-            Path sourcePath = Paths.get(TMP_PATH + filename);
-            try {
-                Files.createDirectories(Paths.get(serverStoragePath));
-                Files.copy(sourcePath, targetPath);
-            } catch (IOException e) {
-                System.err.println("Failed to copy file: " + e.getMessage());
-                return -1;
+    /**
+     * Whether the user has already stored contents with this digest, so an upload of them can be skipped.
+     * Only the user's own count: a digest is no proof of having the contents, and skipping for anyone naming
+     * one would give them other users' files. Anyone else sends the contents, which are then stored once.
+     */
+    public boolean hasBlob(String digest, String username) {
+        String sql = "SELECT b.file_path FROM blobs b JOIN Attachments a ON a.file_path = b.file_path "
+                + "JOIN messages m ON m.mid = a.message_id WHERE b.digest = ? AND m.sender = ? LIMIT 1";
+        try (Connection conn = connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, digest);
+            pstmt.setString(2, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() && new File(rs.getString("file_path")).isFile();
             }
+        } catch (SQLException e) {
+            System.err.println("Failed to look up blob: " + e.getMessage());
+            return false;
+        }
+    }
 
-            // 3. update the file path in the database
-            String updateSql = "UPDATE Attachments SET file_path = ? WHERE attachment_id = ?";
-            try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-                pstmt.setString(1, serverStoragePath + newFileName);
-                pstmt.setInt(2, attachmentId);
-                pstmt.executeUpdate();
-                System.out.println("File uploaded and path updated successfully: " + targetPath);
+    /**
+     * Delete an attachment, and its blob once no other attachment refers to it
+     */
+    public void deleteAttachment(int attachmentId) {
+        File file = getFile(attachmentId);
+        if (file == null) return;
+        attachmentCache.invalidate(attachmentId);
+        String filePath = file.getPath();
+        boolean unreferenced = false;
+        Lock lock = blobLock(file.getName());
+        lock.lock(); // the blob is named after its digest
+        try {
+            try (Connection conn = connect()) {
+                conn.setAutoCommit(false);
+                try {
+                    try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM Attachments WHERE attachment_id = ?")) {
+                        pstmt.setInt(1, attachmentId);
+                        pstmt.executeUpdate();
+                    }
+                    int counted;
+                    try (PreparedStatement pstmt = conn.prepareStatement("UPDATE blobs SET ref_count = ref_count - 1 WHERE file_path = ?")) {
+                        pstmt.setString(1, filePath);
+                        counted = pstmt.executeUpdate();
+                    }
+                    if (counted == 0) {
+                        unreferenced = true; // stored before blobs, one file per attachment
+                    } else {
+                        try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM blobs WHERE file_path = ? AND ref_count <= 0")) {
+                            pstmt.setString(1, filePath);
+                            unreferenced = pstmt.executeUpdate() > 0;
+                        }
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    unreferenced = false;
+                    System.err.println("Failed to delete attachment: " + e.getMessage());
+                } finally {
+                    conn.setAutoCommit(true);
+                }
             } catch (SQLException e) {
-                System.err.println("Failed to update file path: " + e.getMessage());
+                System.err.println("Failed to delete attachment: " + e.getMessage());
             }
-        } catch (SQLException e) {
-            System.err.println("Failed to save file: " + e.getMessage());
+            attachmentCache.invalidate(attachmentId); // in case a lookup cached it again meanwhile
+            if (unreferenced) {
+                blobCache.invalidate(file);
+                if (!file.delete()) System.err.println("Failed to delete " + file);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Where the blob with this digest is stored, e.g. files/blobs/3f/3fa9...
+     */
+    private String blobPath(String digest) {
+        return FILE_PATH + "blobs/" + digest.substring(0, 2) + "/" + digest;
+    }
+
+    private Lock blobLock(String digest) {
+        return blobLocks[Math.floorMod(digest.hashCode(), blobLocks.length)];
+    }
+
+    /**
+     * Rename a staged upload to its attachment path. Both are on one volume unless the configuration
+     * says otherwise, then it falls back to a copy.
+     */
+    private static void moveIntoStorage(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            System.err.println("Staging and attachment directories are on different volumes, copying " + source);
+            Files.move(source, target);
         }
-        return attachmentId;
     }
 
     public void initDatabase() {
@@ -203,6 +531,9 @@ public class DatabaseConnection {
                         if(line.contains("AUTO_INCREMENT")) {
                             line = line.replace("AUTO_INCREMENT", "AUTOINCREMENT");
                         }
+                        if (line.startsWith("CREATE INDEX ")) {
+                            line = line.replace("CREATE INDEX ", "CREATE INDEX IF NOT EXISTS ");
+                        }
                     }
                     sqlBuilder.append(line).append("\n");
                 }
@@ -222,7 +553,12 @@ public class DatabaseConnection {
                     String trimmedSql = sql.trim();
                     if (!trimmedSql.isEmpty()) {
 //                        System.out.println("Executing: " + trimmedSql);
-                        stmt.execute(trimmedSql);
+                        try {
+                            stmt.execute(trimmedSql);
+                        } catch (SQLException e) {
+                            // MySQL has no CREATE INDEX IF NOT EXISTS, the index is there from an earlier run
+                            if (!isMySQL || e.getErrorCode() != 1061) throw e;
+                        }
                     }
                 }
                 conn.commit();
@@ -0,0 +1,191 @@
+package Server;
+
+import Utils.Frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A file being sent to a client on one stream of its session. Chunks are only read while the client's
+ * acks leave room in the {@link Frame#WINDOW}, so a large download never queues far ahead of the chat.
+ * The NIO engine polls {@link #nextChunk}; the blocking engine waits in {@link #awaitWindow()}.
+ * Large files are read through a memory map, a segment at a time, instead of a read call per chunk,
+ * and small ones held by the {@link BlobCache} are sent from memory.
+ * A download resumed after a dropped connection starts at the offset the client already has.
+ */
+class Download implements Closeable {
+    static final long DEFAULT_MAP_THRESHOLD = 8L << 20;
+    private static final long MAP_SEGMENT = 64L << 20;
+
+    private final int stream;
+    private final File file;
+    private final FileChannel channel; // null when sent from memory
+    private final ByteBuffer contents; // the cached file, null when read from disk
+    private final long length;
+    private final boolean mapped;
+    private final long offset;  // where this download starts
+    private MappedByteBuffer segment; // the mapped part of the file holding the next chunk
+    private long segmentStart;
+    private long sent;           // only touched by the sending thread
+    private volatile long acked; // updated by the thread reading the client's frames
+    private volatile boolean closed;
+    private final Lock lock = new ReentrantLock();
+    private final Condition windowOpen = lock.newCondition();
+
+    /**
+     * @param offset bytes the client already has from an interrupted download, sent again from 0 if out of range
+     * @param mapThreshold files of at least this many bytes are memory mapped
+     */
+    Download(int stream, File file, long offset, long mapThreshold) throws IOException {
+        this.stream = stream;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.contents = null;
+        this.length = channel.size();
+        this.mapped = length >= mapThreshold;
+        this.offset = offset < 0 || offset > length ? 0 : offset;
+        this.sent = this.offset;
+        this.acked = this.offset;
+        channel.position(this.offset);
+    }
+
+    /**
+     * A download of a file cached in memory, see {@link BlobCache#load}
+     * @param contents the whole file, consumed by this download
+     */
+    Download(int stream, File file, ByteBuffer contents, long offset) {
+        this.stream = stream;
+        this.file = file;
+        this.channel = null;
+        this.contents = contents;
+        this.length = contents.remaining();
+        this.mapped = false;
+        this.offset = offset < 0 || offset > length ? 0 : offset;
+        this.sent = this.offset;
+        this.acked = this.offset;
+        contents.position(contents.position() + (int) this.offset);
+    }
+
+    int stream() {
+        return stream;
+    }
+
+    /**
+     * The reply announcing the chunks: "download &lt;stream&gt; &lt;length&gt; &lt;offset&gt; &lt;name&gt;"
+     */
+    String header() {
+        return "download " + stream + " " + length + " " + offset + " " + file.getName();
+    }
+
+    private long window() {
+        return acked + Frame.WINDOW - sent;
+    }
+
+    /**
+     * Read the next chunk frame into a buffer of at least HEADER_SIZE + CHUNK_SIZE bytes, ready to write
+     * @return false if the window is closed or the whole file has been sent
+     */
+    boolean nextChunk(ByteBuffer frame) throws IOException {
+        long window = window();
+        if (window <= 0 || isDone()) return false;
+        int count = (int) Math.min(Math.min(Frame.CHUNK_SIZE, window), length - sent);
+        frame.clear();
+        frame.position(Frame.HEADER_SIZE);
+        frame.limit(Frame.HEADER_SIZE + count);
+        if (contents != null) {
+            ByteBuffer source = contents.duplicate();
+            source.limit(source.position() + count);
+            frame.put(source);
+            contents.position(source.position());
+        } else if (mapped) {
+            while (frame.hasRemaining()) copyMapped(frame);
+        } else {
+            while (frame.hasRemaining()) {
+                if (channel.read(frame) < 0) throw new IOException(file.getName() + " is shorter than " + length + " bytes");
+            }
+        }
+        sent += count;
+        frame.flip();
+        Frame.writeHeader(frame.duplicate(), Frame.Type.FILE_CHUNK, stream, count);
+        return true;
+    }
+
+    /**
+     * Copy from the mapped file at the current offset, up to the end of its segment
+     */
+    private void copyMapped(ByteBuffer frame) throws IOException {
+        long offset = sent + frame.position() - Frame.HEADER_SIZE;
+        if (segment == null || offset >= segmentStart + segment.capacity()) {
+            segmentStart = offset - offset % MAP_SEGMENT;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(MAP_SEGMENT, length - segmentStart));
+        }
+        ByteBuffer source = segment.duplicate();
+        source.position((int) (offset - segmentStart));
+        if (source.remaining() > frame.remaining()) source.limit(source.position() + frame.remaining());
+        frame.put(source);
+    }
+
+    boolean isDone() {
+        return sent >= length;
+    }
+
+    /**
+     * The client has received the file up to this offset
+     */
+    void ack(long offset) {
+        lock.lock();
+        try {
+            if (offset > acked) acked = offset;
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the window has room for another chunk
+     * @return false if the download was closed meanwhile
+     */
+    boolean awaitWindow() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && window() <= 0) windowOpen.await();
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (channel == null) return;
+        try {
+            channel.close(); // a mapped segment stays valid until it is collected
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Read server.download.mapthreshold from the configuration
+     */
+    static long mapThreshold(Properties properties) {
+        String value = properties.getProperty("server.download.mapthreshold");
+        return value == null ? DEFAULT_MAP_THRESHOLD : Long.parseLong(value.trim());
+    }
+}
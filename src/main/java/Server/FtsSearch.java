@@ -0,0 +1,109 @@
+package Server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search on SQLite through an FTS5 table over messages. Triggers on messages keep it up to date in the
+ * same transaction as the insert, so a message is searchable as soon as it is saved.
+ * Matches are ranked by FTS5's bm25.
+ */
+class FtsSearch implements MessageSearch {
+    private static final String[] SCHEMA = {
+            "CREATE VIRTUAL TABLE messages_fts USING fts5(message, content='messages', content_rowid='mid')",
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_insert AFTER INSERT ON messages BEGIN "
+                    + "INSERT INTO messages_fts (rowid, message) VALUES (new.mid, new.message); END",
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON messages BEGIN "
+                    + "INSERT INTO messages_fts (messages_fts, rowid, message) VALUES ('delete', old.mid, old.message); END",
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_update AFTER UPDATE OF message ON messages BEGIN "
+                    + "INSERT INTO messages_fts (messages_fts, rowid, message) VALUES ('delete', old.mid, old.message); "
+                    + "INSERT INTO messages_fts (rowid, message) VALUES (new.mid, new.message); END",
+            "INSERT INTO messages_fts (messages_fts) VALUES ('rebuild')" // index what was saved before
+    };
+
+    private final DatabaseConnection database;
+
+    FtsSearch(DatabaseConnection database) {
+        this.database = database;
+    }
+
+    /**
+     * Create the FTS table and its triggers the first time, in one transaction with indexing the saved messages
+     */
+    @Override
+    public void open() {
+        try (Connection conn = database.connect()) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM sqlite_master WHERE name = 'messages_fts'");
+                 ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) return;
+            }
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : SCHEMA) stmt.execute(sql);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to create the search index: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void add(int messageId, int roomId, String message) {
+        // the insert trigger has indexed it
+    }
+
+    @Override
+    public Results search(int roomId, String query, int offset, int limit) {
+        String match = match(query);
+        List<String> messages = new ArrayList<>();
+        if (match.isEmpty()) return new Results(messages, 0);
+        int total = 0;
+        try (Connection conn = database.connect()) {
+            String sql = "SELECT m.sender, m.message FROM messages_fts JOIN messages m ON m.mid = messages_fts.rowid "
+                    + "WHERE messages_fts MATCH ? AND m.room_id = ? ORDER BY rank LIMIT ? OFFSET ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, match);
+                pstmt.setInt(2, roomId);
+                pstmt.setInt(3, limit);
+                pstmt.setInt(4, offset);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) messages.add(rs.getString("sender") + ": " + rs.getString("message"));
+                }
+            }
+            sql = "SELECT count(*) FROM messages_fts JOIN messages m ON m.mid = messages_fts.rowid "
+                    + "WHERE messages_fts MATCH ? AND m.room_id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, match);
+                pstmt.setInt(2, roomId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) total = rs.getInt(1);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to search messages: " + e.getMessage());
+        }
+        return new Results(messages, total);
+    }
+
+    /**
+     * An FTS5 query matching every word, each quoted so the user's input is never read as query syntax
+     */
+    private static String match(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : MessageSearch.words(query)) {
+            if (match.length() > 0) match.append(' ');
+            match.append('"').append(word).append('"');
+        }
+        return match.toString();
+    }
+}
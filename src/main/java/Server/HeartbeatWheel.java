@@ -0,0 +1,145 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Liveness tracker shared by all sessions of a server: one timer thread and a hashed timing wheel
+ * instead of a sleeping monitor thread per connection.
+ * <p>
+ * A session registers once and calls {@link Timeout#touch()} whenever it hears from its client, which only
+ * stores a timestamp. The wheel looks at a session again when its deadline bucket comes round: if the
+ * session was active meanwhile it is moved to its new deadline bucket, otherwise it expires. Each tick
+ * therefore only handles the sessions due in that bucket, O(1) per session.
+ */
+public class HeartbeatWheel {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 3 * 25 * 1000; // three missed 25s heartbeat checks
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final List<Queue<Timeout>> buckets;
+    private final long startTime;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger tracked = new AtomicInteger();
+    private final AtomicLong expired = new AtomicLong();
+    private volatile long currentTick;
+
+    public HeartbeatWheel() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_TICK_MILLIS);
+    }
+
+    public HeartbeatWheel(long timeoutMillis, long tickMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = tickMillis;
+        // one revolution covers a whole timeout, so an entry never has to wait more than one round
+        int count = (int) (timeoutMillis / tickMillis) + 2;
+        buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) buckets.add(new ConcurrentLinkedQueue<>());
+        startTime = System.currentTimeMillis();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "heartbeat-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start tracking a session
+     * @param onExpire called on the wheel thread when the session has been idle for the timeout, must not block
+     * @return the handle to touch on activity and cancel on disconnect
+     */
+    public Timeout register(Runnable onExpire) {
+        Timeout timeout = new Timeout(onExpire);
+        tracked.incrementAndGet();
+        schedule(timeout);
+        return timeout;
+    }
+
+    public int trackedCount() {
+        return tracked.get();
+    }
+
+    public long expiredCount() {
+        return expired.get();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void schedule(Timeout timeout) {
+        long deadlineTick = (timeout.lastActivity + timeoutMillis - startTime + tickMillis - 1) / tickMillis;
+        long tick = Math.max(deadlineTick, currentTick + 1);
+        buckets.get((int) (tick % buckets.size())).add(timeout);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long target = (now - startTime) / tickMillis;
+        while (currentTick < target) { // catch up if the timer thread was late
+            currentTick++;
+            expireBucket(currentTick, now);
+        }
+    }
+
+    private void expireBucket(long tick, long now) {
+        Queue<Timeout> bucket = buckets.get((int) (tick % buckets.size()));
+
+        // only look at what was due when the tick started, rescheduled entries land in later buckets
+        for (int due = bucket.size(); due > 0; due--) {
+            Timeout timeout = bucket.poll();
+            if (timeout == null) break;
+            if (timeout.isCancelled()) continue;
+            if (now - timeout.lastActivity >= timeoutMillis) {
+                timeout.cancel();
+                expired.incrementAndGet();
+                try {
+                    timeout.onExpire.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                schedule(timeout); // active since it was scheduled
+            }
+        }
+    }
+
+    /**
+     * A session's entry in the wheel
+     */
+    public final class Timeout {
+        private final Runnable onExpire;
+        private volatile long lastActivity;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Timeout(Runnable onExpire) {
+            this.onExpire = onExpire;
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Record activity from the client
+         */
+        public void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Stop tracking, the entry is dropped lazily when its bucket comes round
+         */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) tracked.decrementAndGet();
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+}
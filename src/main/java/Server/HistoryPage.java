@@ -0,0 +1,37 @@
+package Server;
+
+import java.util.List;
+
+/**
+ * A page of a room's history, and where the page before it starts
+ */
+public class HistoryPage {
+    public static final int MAX_SIZE = 200; // messages a client can ask for at once
+
+    private final List<String> messages;
+    private final int before;
+
+    /**
+     * @param messages "sender: message", oldest first
+     * @param before id to ask for the previous page with, 0 if there is none, -1 if it is not known yet
+     */
+    public HistoryPage(List<String> messages, int before) {
+        this.messages = messages;
+        this.before = before;
+    }
+
+    /**
+     * How many messages to answer a client asking for count with, at least 1 and at most {@link #MAX_SIZE}
+     */
+    public static int size(int count) {
+        return Math.max(1, Math.min(count, MAX_SIZE));
+    }
+
+    public List<String> messages() {
+        return messages;
+    }
+
+    public int before() {
+        return before;
+    }
+}
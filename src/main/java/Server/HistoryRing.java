@@ -0,0 +1,103 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The most recent messages of a room, in a ring of fixed capacity: the oldest message is overwritten
+ * by the newest, so memory stays the same however long the server runs. A message is kept as its UTF-8
+ * bytes and the number of its sender, each sender's name is stored once. Older messages are in the database.
+ */
+public class HistoryRing {
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final int capacity;
+    private final int[] senders;  // index into senderNames
+    private final byte[][] texts; // UTF-8
+    private final int[] ids;      // message id in the database, -1 until it is saved
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private final List<String> senderNames = new ArrayList<>();
+    private long appended; // messages ever appended, the next one goes to slot appended % capacity
+
+    public HistoryRing(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.senders = new int[this.capacity];
+        this.texts = new byte[this.capacity][];
+        this.ids = new int[this.capacity];
+    }
+
+    /**
+     * Read server.history.capacity from the configuration
+     */
+    public static int capacity(Properties properties) {
+        String value = properties.getProperty("server.history.capacity");
+        return value == null ? DEFAULT_CAPACITY : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Add a message, replacing the oldest one if the ring is full
+     * @return the position of the message, for {@link #saved}
+     */
+    public synchronized long append(String sender, String message) {
+        Integer senderId = senderIds.get(sender);
+        if (senderId == null) {
+            senderId = senderNames.size();
+            senderIds.put(sender, senderId);
+            senderNames.add(sender);
+        }
+        int slot = (int) (appended % capacity);
+        senders[slot] = senderId;
+        texts[slot] = message.getBytes(StandardCharsets.UTF_8);
+        ids[slot] = -1;
+        return appended++;
+    }
+
+    /**
+     * Record the database id of a message, unless it has been overwritten meanwhile
+     */
+    public synchronized void saved(long position, int messageId) {
+        if (position < appended - capacity || position >= appended) return;
+        ids[(int) (position % capacity)] = messageId;
+    }
+
+    /**
+     * Copy up to count of the most recent messages as "sender: message", oldest first
+     * @return the lowest database id among the copied messages, where older history continues;
+     *         Integer.MAX_VALUE if nothing was copied, -1 if none of them is saved yet
+     */
+    public int snapshot(int count, List<String> into) {
+        int size;
+        int[] copiedSenders;
+        byte[][] copiedTexts;
+        String[] names;
+        int lowestId = Integer.MAX_VALUE;
+        synchronized (this) { // copy the references, decode outside the lock
+            size = (int) Math.min(Math.min(count, appended), capacity);
+            copiedSenders = new int[size];
+            copiedTexts = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                int slot = (int) ((appended - size + i) % capacity);
+                copiedSenders[i] = senders[slot];
+                copiedTexts[i] = texts[slot];
+                if (ids[slot] >= 0) lowestId = Math.min(lowestId, ids[slot]);
+            }
+            names = senderNames.toArray(new String[0]);
+        }
+        for (int i = 0; i < size; i++) {
+            into.add(names[copiedSenders[i]] + ": " + new String(copiedTexts[i], StandardCharsets.UTF_8));
+        }
+        return size > 0 && lowestId == Integer.MAX_VALUE ? -1 : lowestId;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(appended, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,238 @@
+package Server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Search for databases without a full-text index we can rely on: each word maps to the ids of the messages
+ * containing it, in memory. Saved messages are indexed in the background when the server starts, new ones
+ * as they are saved. Matches are ranked by BM25, the text of a page of them is read from the database.
+ */
+class InvertedIndex implements MessageSearch {
+    private static final int LOAD_BATCH = 10_000; // messages read per query while building
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final DatabaseConnection database;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private int[] lengths = new int[1024]; // words per message, by id
+    private int[] rooms = new int[1024];   // room of each message, by id
+    private final BitSet indexed = new BitSet(); // ids counted in documents, a message saved during the load can come twice
+    private long totalLength;
+    private int documents;
+    private volatile boolean open; // new messages are indexed from then on
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Ids of the messages containing a word, ascending; messages are mostly indexed in the order they were saved
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] >= id) { // indexed out of order, or twice
+                int at = Arrays.binarySearch(ids, 0, size, id);
+                if (at >= 0) return;
+                insert(-at - 1, id);
+                return;
+            }
+            insert(size, id);
+        }
+
+        private void insert(int at, int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+    }
+
+    InvertedIndex(DatabaseConnection database) {
+        this.database = database;
+    }
+
+    /**
+     * Index the saved messages on a thread of its own; messages saved meanwhile are indexed as they come
+     */
+    @Override
+    public void open() {
+        if (open) return;
+        open = true;
+        Thread loader = new Thread(this::load, "search-indexer");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        try (Connection conn = database.connect()) {
+            int last;
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT MAX(mid) FROM messages");
+                 ResultSet rs = pstmt.executeQuery()) {
+                last = rs.next() ? rs.getInt(1) : 0; // saved later means indexed by add
+            }
+            String sql = "SELECT mid, room_id, message FROM messages WHERE mid > ? AND mid <= ? ORDER BY mid LIMIT ?";
+            int after = 0;
+            while (after < last) {
+                int loaded = 0;
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setInt(1, after);
+                    pstmt.setInt(2, last);
+                    pstmt.setInt(3, LOAD_BATCH);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            after = rs.getInt("mid");
+                            index(after, rs.getInt("room_id"), rs.getString("message"));
+                            loaded++;
+                        }
+                    }
+                }
+                if (loaded < LOAD_BATCH) break;
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to build the search index: " + e.getMessage());
+        }
+        System.out.printf("Search index: %d messages, %d words in %d ms%n", documents, postings.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void add(int messageId, int roomId, String message) {
+        if (open && messageId >= 0) index(messageId, roomId, message);
+    }
+
+    private void index(int messageId, int roomId, String message) {
+        List<String> words = MessageSearch.words(message);
+        lock.writeLock().lock();
+        try {
+            if (indexed.get(messageId)) return;
+            indexed.set(messageId);
+            for (String word : new HashSet<>(words)) postings.computeIfAbsent(word, w -> new Postings()).add(messageId);
+            if (messageId >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(messageId + 1, lengths.length * 2));
+                rooms = Arrays.copyOf(rooms, lengths.length);
+            }
+            lengths[messageId] = words.size();
+            rooms[messageId] = roomId;
+            totalLength += words.size();
+            documents++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Results search(int roomId, String query, int offset, int limit) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(MessageSearch.words(query)));
+        if (words.isEmpty()) return new Results(new ArrayList<>(), 0);
+        int[] ids;
+        double[] scores;
+        int matches;
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String word : words) {
+                Postings list = postings.get(word);
+                if (list == null) return new Results(new ArrayList<>(), 0); // every word has to match
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size)); // the rarest word picks the candidates
+            ids = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            matches = ids.length;
+            for (int i = 1; i < lists.size() && matches > 0; i++) {
+                matches = intersect(ids, matches, lists.get(i));
+            }
+            int kept = 0;
+            for (int i = 0; i < matches; i++) {
+                if (rooms[ids[i]] == roomId) ids[kept++] = ids[i];
+            }
+            matches = kept;
+            scores = new double[matches];
+            double averageLength = documents == 0 ? 1 : (double) totalLength / documents;
+            for (Postings list : lists) {
+                double idf = Math.log(1 + (documents - list.size + 0.5) / (list.size + 0.5));
+                for (int i = 0; i < matches; i++) {
+                    double norm = 1 - B + B * lengths[ids[i]] / averageLength;
+                    scores[i] += idf * (K1 + 1) / (1 + K1 * norm);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Results(load(roomId, top(ids, scores, matches, offset, limit)), matches);
+    }
+
+    /**
+     * Keep the first count ids that are also in the list, at the front
+     * @return how many are left
+     */
+    private static int intersect(int[] ids, int count, Postings list) {
+        int kept = 0;
+        for (int i = 0, j = 0; i < count && j < list.size; ) {
+            if (ids[i] < list.ids[j]) i++;
+            else if (ids[i] > list.ids[j]) j++;
+            else {
+                ids[kept++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Ids of the matches from the offset-th best on, newer first when equally good,
+     * picked with a heap of offset + limit instead of sorting every match
+     */
+    private static List<Integer> top(int[] ids, double[] scores, int matches, int offset, int limit) {
+        int wanted = (int) Math.min((long) offset + limit, matches);
+        if (offset >= wanted) return new ArrayList<>();
+        Comparator<Integer> worseFirst = (a, b) -> {
+            int byScore = Double.compare(scores[a], scores[b]);
+            return byScore != 0 ? byScore : Integer.compare(ids[a], ids[b]);
+        };
+        PriorityQueue<Integer> best = new PriorityQueue<>(wanted, worseFirst);
+        for (int i = 0; i < matches; i++) {
+            if (best.size() < wanted) best.add(i);
+            else if (worseFirst.compare(i, best.peek()) > 0) {
+                best.poll();
+                best.add(i);
+            }
+        }
+        Integer[] ranked = new Integer[best.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) ranked[i] = ids[best.poll()];
+        return new ArrayList<>(Arrays.asList(ranked).subList(offset, ranked.length));
+    }
+
+    /**
+     * The messages with these ids, in the same order
+     */
+    private List<String> load(int roomId, List<Integer> ids) {
+        List<String> messages = new ArrayList<>();
+        if (ids.isEmpty()) return messages;
+        StringBuilder sql = new StringBuilder("SELECT mid, sender, message FROM messages WHERE room_id = ? AND mid IN (");
+        for (int i = 0; i < ids.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+        sql.append(")");
+        Map<Integer, String> byId = new HashMap<>();
+        try (Connection conn = database.connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            pstmt.setInt(1, roomId);
+            for (int i = 0; i < ids.size(); i++) pstmt.setInt(i + 2, ids.get(i));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) byId.put(rs.getInt("mid"), rs.getString("sender") + ": " + rs.getString("message"));
+            }
+        } catch (SQLException e) {
+            System.err.println("Failed to search messages: " + e.getMessage());
+        }
+        for (int id : ids) {
+            String message = byId.get(id);
+            if (message != null) messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,63 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text search over the saved messages, kept up to date as messages are saved.
+ * SQLite uses its FTS5 extension, other databases the {@link InvertedIndex} in memory.
+ */
+public interface MessageSearch {
+
+    /**
+     * Create or load the index; building it from the saved messages may go on in the background
+     */
+    void open();
+
+    /**
+     * A message has been saved
+     */
+    void add(int messageId, int roomId, String message);
+
+    /**
+     * Messages of a room containing every word of the query, best match first
+     * @return up to limit messages from the offset-th match on
+     */
+    Results search(int roomId, String query, int offset, int limit);
+
+    /**
+     * A page of matches, and how many there are in all
+     */
+    class Results {
+        private final List<String> messages;
+        private final int total;
+
+        /**
+         * @param messages "sender: message", best match first
+         */
+        public Results(List<String> messages, int total) {
+            this.messages = messages;
+            this.total = total;
+        }
+
+        public List<String> messages() {
+            return messages;
+        }
+
+        public int total() {
+            return total;
+        }
+    }
+
+    /**
+     * The words of a text, lowercase, as both indexes see them
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) words.add(word);
+        }
+        return words;
+    }
+}
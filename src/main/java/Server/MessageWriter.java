@@ -0,0 +1,147 @@
+package Server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence of chat messages. A broadcast is delivered first and only queued here;
+ * a dedicated writer thread saves whatever has accumulated in one multi-row insert.
+ * <p>
+ * The queue is bounded: when the database falls that far behind, {@link #save} blocks the broadcasting
+ * thread until there is room again. {@link #close()} writes everything still queued.
+ */
+public class MessageWriter {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int MAX_BATCH = 100; // rows per insert statement
+
+    private final DatabaseConnection database;
+    private final BlockingQueue<Entry> queue;
+    private final Thread thread;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean running = true;
+
+    public MessageWriter(DatabaseConnection database, int capacity) {
+        this.database = database;
+        this.queue = new ArrayBlockingQueue<>(Math.max(MAX_BATCH, capacity));
+        this.thread = new Thread(this::run, "message-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a message to be saved, blocks while the queue is full
+     * @param roomId room the message was sent in
+     * @return completes with the message id once it is saved, -1 if saving failed
+     */
+    public CompletableFuture<Integer> save(int roomId, String from, String msg) {
+        Entry entry = new Entry(roomId, from, msg);
+        if (!running) { // closing, nobody will drain the queue anymore
+            List<Entry> batch = new ArrayList<>();
+            batch.add(entry);
+            write(batch);
+            return entry.id;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+            entry.id.complete(-1);
+        }
+        return entry.id;
+    }
+
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    public long writtenCount() {
+        return written.get();
+    }
+
+    public long failedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stop the writer after saving everything queued so far
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        int count = batch.size();
+        int[] roomIds = new int[count];
+        String[] senders = new String[count];
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            Entry entry = batch.get(i);
+            roomIds[i] = entry.roomId;
+            senders[i] = entry.from;
+            messages[i] = entry.msg;
+        }
+
+        int[] ids;
+        try {
+            ids = database.saveMsgs(roomIds, senders, messages);
+            written.addAndGet(count);
+        } catch (SQLException e) {
+            System.err.println("Failed to save " + count + " messages: " + e.getMessage());
+            failed.addAndGet(count);
+            ids = null;
+        }
+        for (int i = 0; i < count; i++) {
+            batch.get(i).id.complete(ids == null ? -1 : ids[i]);
+        }
+    }
+
+    /**
+     * Read db.writebehind.capacity from the configuration
+     */
+    public static int capacity(Properties properties) {
+        String value = properties.getProperty("db.writebehind.capacity");
+        return value == null ? DEFAULT_CAPACITY : Integer.parseInt(value.trim());
+    }
+
+    private static final class Entry {
+        final int roomId;
+        final String from;
+        final String msg;
+        final CompletableFuture<Integer> id = new CompletableFuture<>();
+
+        Entry(int roomId, String from, String msg) {
+            this.roomId = roomId;
+            this.from = from;
+            this.msg = msg;
+        }
+    }
+}
@@ -1,230 +1,397 @@
 package Server;
 
-import javax.net.ssl.SSLSocket;
+import Utils.Frame;
+
 import java.io.*;
 import java.math.RoundingMode;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.text.DecimalFormat;
-import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MsgTask implements Runnable {
-    private static final String HEARTBEAT = "[usage for heartbeat packet]";
+    private static final int CHUNKS_PER_WRITE = 4; // a download's turn on the socket, then the chat gets one
     private final Server server;
     private final String localPath;
-    private final SSLSocket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
-    private final DataOutputStream dos;
-    private final String username;
-    private boolean connected;
-    private long timestamp; // last time received a message
-    private int timeout; // count of timeout
+    private final SocketSession session;
+    private final DataInputStream in;
+    private volatile String username; // Guest until the client logs in on this connection
+    private volatile String verified; // the user the client logged in as on this connection, null if none
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+    private HeartbeatWheel.Timeout heartbeat; // touched on every message from the client
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>(); // by stream, suspended by whichever thread disconnects
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>(); // by stream, each sent by its own thread
 
     private final DatabaseConnection database;
+    private final Rooms rooms;
+    private volatile Room room; // the room the client is in, its messages go there
 
-    public MsgTask(Server server, String localPath, SSLSocket socket, BufferedReader in, PrintWriter out, String username) throws IOException {
+    /**
+     * @param in the client's input, positioned after the hello frame
+     */
+    public MsgTask(Server server, String localPath, SocketSession session, DataInputStream in) {
         this.server = server;
         this.localPath = localPath;
-        this.socket = socket;
+        this.session = session;
         this.in = in;
-        this.out = out;
-        this.username = username;
-        connected = true;
-        timestamp = new Date().getTime();
-        timeout = 0;
-        dos = new DataOutputStream(socket.getOutputStream());
-        database = new DatabaseConnection();
+        this.username = session.getUsername();
+        database = server.getDatabase();
+        rooms = server.getRooms();
     }
 
     @Override
     public void run() {
-        startHeartbeatMonitor();
+        // expire on a separate thread, disconnecting writes to sockets and must not block the wheel
+        heartbeat = server.getHeartbeatWheel().register(() -> server.startThread(this::expire));
+        room = rooms.lobby();
+        rooms.move(session, null, room);
 
         try {
-            DataInputStream dataInput = new DataInputStream(socket.getInputStream());
-
-            while (connected) {
-                // process message from client
-                String message = in.readLine();
-                timestamp = new Date().getTime();
-
-                if ("exit".equals(message)) {
-                    handleExitCommand();
-                }
-                else if (message.startsWith("upload")) {
-                    handleFileUpload(dataInput, message.contains("voice"));
-                }
-                else if (message.startsWith("Register ")) {
-                    handleRegistration(message);
-                }
-                else if (message.startsWith("Login ")) {
-                    handleLogin(message);
-                }
-                else if (message.startsWith("download")) {
-                    handleFileDownload(message);
-                }
-                else if (HEARTBEAT.equals(message)) {
-                    System.out.println(username + " heartbeat");
-                    this.timeout = 0;
-                }
-                else { // normal message
-                    server.broadcast(username, message);
+            while (connected.get()) {
+                // process frames from client
+                Frame frame = Frame.read(in);
+                if (frame == null) break; // client closed the connection
+                heartbeat.touch();
+
+                switch (frame.type()) {
+                    case TEXT: // normal message
+                        room.broadcast(username, frame.text());
+                        break;
+                    case CONTROL:
+                        handleCommand(frame.text());
+                        break;
+                    case FILE_CHUNK:
+                        handleFileChunk(frame);
+                        break;
+                    case ACK: // the client has room for more of a download
+                        Download download = downloads.get(frame.stream());
+                        if (download != null) download.ack(frame.offset());
+                        break;
+                    case HEARTBEAT:
+                        System.out.println(username + " heartbeat");
+                        break;
                 }
             }
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             if (!(e instanceof SocketException)) {
                 e.printStackTrace();
             }
+        } finally {
+            // connection lost or closed by the server (e.g. evicted as a slow consumer)
+            expire();
         }
     }
 
-    private void startHeartbeatMonitor() {
-        final int heartbeatIntervalMillis = 25 * 1000;
+    private void expire() {
+        if (!connected.get()) return;
+        try {
+            disconnect(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        new Thread(() -> {
-            while (connected) {
-                try {
-                    Thread.sleep(heartbeatIntervalMillis);
-                    long currentTime = new Date().getTime();
-                    if (currentTime - timestamp > heartbeatIntervalMillis) {
-                        if (timeout == 2) {
-                            disconnect(true);
-                        } else {
-                            timeout++;
-                        }
-                    }
-                } catch (InterruptedException | IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }).start();
+    private void handleCommand(String message) throws IOException {
+        if ("exit".equals(message)) {
+            handleExitCommand();
+        }
+        else if (message.startsWith("upload ")) {
+            startUpload(message);
+        }
+        else if (message.startsWith("Register ")) {
+            handleRegistration(message);
+        }
+        else if (message.startsWith("Login ")) {
+            handleLogin(message);
+        }
+        else if (message.startsWith("Resume ")) {
+            handleResume(message);
+        }
+        else if ("upgrade".equals(message)) {
+            handleUpgrade();
+        }
+        else if (message.startsWith("download ")) {
+            handleFileDownload(message);
+        }
+        else if (message.startsWith("history ")) {
+            handleHistory(message);
+        }
+        else if (message.startsWith("search ")) {
+            handleSearch(message);
+        }
+        else if (message.startsWith("join ")) {
+            switchRoom(rooms.get(message.substring(5)), message.substring(5));
+        }
+        else if ("leave".equals(message)) {
+            switchRoom(rooms.lobby(), rooms.lobby().name());
+        }
     }
 
-    private void handleExitCommand() throws IOException {
-        boolean isMainServer = socket.getLocalPort() == server.getServerLocalPort();
-        disconnect(isMainServer); // notify other users if this is the main server
+    /**
+     * Answer "join &lt;room&gt;" and "leave", back to the lobby, with "room &lt;name&gt;" once the client is in
+     * the room, or "noroom &lt;room&gt;" if there is no room of that name and none could be created
+     */
+    private void switchRoom(Room target, String name) {
+        if (target == null) {
+            session.sendControl("noroom " + name);
+            return;
+        }
+        Room previous = room;
+        if (previous == target) {
+            session.sendControl("room " + target.name());
+            return;
+        }
+        room = target;
+        rooms.move(session, previous, target);
     }
 
-    private void handleFileUpload(DataInputStream dataInput, boolean isVoice) throws IOException {
-        int bufferSize = 1024;
-        String fileBaseName = dataInput.readUTF();
-        String fileName = username + "_" + new Date().getTime() + "_" + fileBaseName;
-        long fileLength = dataInput.readLong();
+    private void handleExitCommand() throws IOException {
+        disconnect(true); // notify other users
+    }
 
-        File directory = new File(localPath);  // TODO: TBD where to save the file
-        if (!directory.exists()) {
-            directory.mkdirs();
+    /**
+     * "upload &lt;stream&gt; file|voice &lt;length&gt; &lt;transfer&gt; &lt;digest&gt; &lt;name&gt;", answered with the offset
+     * to continue from, the whole length if the user already stored the contents; the chunks follow on that stream
+     */
+    private void startUpload(String message) throws IOException {
+        Upload upload = new Upload(message, username, localPath);
+        if (uploads.putIfAbsent(upload.stream(), upload) != null) {
+            upload.suspend();
+            throw new IOException("Stream " + upload.stream() + " of " + session.getAddress() + " is already in use");
         }
+        if (database.hasBlob(upload.claimedDigest(), username)) upload.skip();
+        session.sendControl(upload.resumeReply());
+        if (upload.isComplete()) finishUpload(upload);
+    }
 
-        File file = new File(directory.getAbsolutePath() + File.separatorChar + fileName);
-        try (FileOutputStream fileOutput = new FileOutputStream(file)) {
-            byte[] buffer = new byte[bufferSize];
-            int bytesRead;
-            long totalRead = 0;
+    private void handleFileChunk(Frame frame) throws IOException {
+        Upload upload = uploads.get(frame.stream());
+        if (upload == null) throw new IOException("Unexpected file chunk from " + session.getAddress());
+        long ack = upload.write(frame.payload());
+        if (ack >= 0) session.send(Frame.ack(upload.stream(), ack));
+        if (upload.isComplete()) finishUpload(upload);
+    }
 
-            while (totalRead < fileLength && (bytesRead = dataInput.read(buffer)) != -1) {
-                totalRead += bytesRead;
-                fileOutput.write(buffer, 0, bytesRead);
-            }
+    private void finishUpload(Upload upload) throws IOException {
+        uploads.remove(upload.stream());
+        if (upload.finish(server, room, username)) {
+            session.send(Frame.ack(upload.stream(), upload.length())); // stored and announced
+        } else {
+            session.sendControl("resend " + upload.stream()); // the client starts the upload over
+        }
+    }
 
-            // TODO: How to match file with the database
-            if (isVoice) {
-                int attachmentId = database.saveFile(fileName, "Voice");
-                int msgId = server.broadcast(username, "Sent a voice message: [Size: " + getFormatFileSize(fileLength) + "] [ID: " + attachmentId + "]");
-                database.linkFile(msgId, attachmentId);
-            } else {
-                int attachmentId = database.saveFile(fileName, "File");
-                int msgId = server.broadcast(username, "File sent: [File Name: " + fileBaseName + "] [Size: " + getFormatFileSize(fileLength) + "] [ID: " + attachmentId + "]");
-                database.linkFile(msgId, attachmentId);
-            }
+    /**
+     * Answer "history &lt;stream&gt; &lt;before&gt; &lt;count&gt;" with a page of messages on that stream
+     * and "history &lt;stream&gt; &lt;count&gt; &lt;before&gt;" naming where the page before it starts,
+     * "bad history" if the request is malformed
+     */
+    private void handleHistory(String message) {
+        String[] parts = message.split(" ");
+        int stream;
+        int before;
+        int count;
+        try {
+            stream = Integer.parseInt(parts[1]);
+            before = Integer.parseInt(parts[2]);
+            count = HistoryPage.size(Integer.parseInt(parts[3]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            session.sendControl("bad history");
+            return;
         }
+        // the latest page comes from the recent history, it has what the database does not yet
+        HistoryPage page = before > 0 ? room.history(before, count) : room.history(count);
+        for (String msg : page.messages()) session.send(Frame.text(stream, msg));
+        session.sendControl("history " + stream + " " + page.messages().size() + " " + page.before());
     }
 
-    private void handleRegistration(String message) throws IOException {
-        String[] credentials = message.substring(9).split(" ");
-        String newUsername = credentials[0];
+    /**
+     * Answer "search &lt;stream&gt; &lt;offset&gt; &lt;count&gt; &lt;query&gt;" with the matching messages on that stream
+     * and "search &lt;stream&gt; &lt;count&gt; &lt;total&gt;" with the number of matches in all,
+     * "bad search" if the request is malformed
+     */
+    private void handleSearch(String message) {
+        String[] parts = message.split(" ", 5);
+        if (parts.length < 5) {
+            session.sendControl("bad search");
+            return;
+        }
+        int stream;
+        int offset;
+        int count;
         try {
-            database.createUser(newUsername, credentials[1]);
-        } catch (SQLException e) {
-            if(e.getMessage().contains("Duplicate entry")) {
-                out.write("Duplicate\r\n");
-            } else {
-                out.write("RegFail\r\n");
-                e.printStackTrace();
-            }
-            out.flush();
+            stream = Integer.parseInt(parts[1]);
+            offset = Math.max(0, Integer.parseInt(parts[2]));
+            count = HistoryPage.size(Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            session.sendControl("bad search");
             return;
         }
+        MessageSearch.Results results = room.search(parts[4], offset, count);
+        for (String msg : results.messages()) session.send(Frame.text(stream, msg));
+        session.sendControl("search " + stream + " " + results.messages().size() + " " + results.total());
+    }
 
-        out.write("RegSucc\r\n");
-        out.flush();
-        server.broadcast(Server.ADMIN, "A new user " + newUsername + " has successfully registered!");
+    /**
+     * Hash the password on the auth threads, this one keeps reading the client's messages
+     */
+    private void handleRegistration(String message) {
+        String[] credentials = message.substring(9).split(" ");
+        String newUsername = credentials[0];
+        boolean queued = server.getAuth().execute(() -> {
+            try {
+                database.createUser(newUsername, credentials[1]);
+            } catch (SQLException e) {
+                if (e.getMessage().contains("Duplicate entry")) {
+                    session.sendControl("Duplicate");
+                } else {
+                    session.sendControl("RegFail");
+                    e.printStackTrace();
+                }
+                return;
+            }
+            session.sendControl("RegSucc");
+            rooms.lobby().broadcast(Server.ADMIN, "A new user " + newUsername + " has successfully registered!");
+        });
+        if (!queued) {
+            session.sendControl("Busy");
+            session.sendControl("RegFail"); // clients before version 7 only wait for this
+        }
     }
 
-    private void handleLogin(String message) throws IOException {
+    /**
+     * Check the password on the auth threads; "token &lt;token&gt;" comes before "Verified"
+     */
+    private void handleLogin(String message) {
         String[] credentials = message.substring(6).split(" ");
-        boolean isVerified = database.verifyUser(credentials[0], credentials[1]);
-        if (isVerified) {
-            out.write("Verified\r\n");
-        } else {
-            out.write("NotVerified\r\n");
+        AuthService auth = server.getAuth();
+        boolean queued = auth.execute(() -> {
+            if (database.verifyUser(credentials[0], credentials[1])) {
+                verified = credentials[0];
+                session.sendControl("token " + auth.issue(credentials[0]));
+                session.sendControl("Verified");
+            } else {
+                session.sendControl("NotVerified");
+            }
+        });
+        if (!queued) {
+            session.sendControl("Busy");
+            session.sendControl("NotVerified");
         }
-        out.flush();
     }
 
-    private void handleFileDownload(String message) throws IOException, InterruptedException {
-        final int bufferSize = 1024;
+    /**
+     * "Resume &lt;token&gt;" logs in again with a token from an earlier login, no bcrypt; answered with a fresh token
+     */
+    private void handleResume(String message) {
+        AuthService auth = server.getAuth();
+        String user = auth.verify(message.substring(7));
+        if (user != null) {
+            verified = user;
+            session.sendControl("token " + auth.issue(user));
+            session.sendControl("Verified");
+        } else {
+            session.sendControl("NotVerified");
+        }
+    }
 
-        out.write("download\r\n");
-        out.flush();
-        Thread.sleep(500);
+    /**
+     * "upgrade" turns a guest connection that has logged in into that user's chat session, answered with
+     * "room &lt;name&gt;" like a hello; the client needs no second connection
+     */
+    private void handleUpgrade() {
+        String user = verified;
+        if (user == null || !"Guest".equals(username)) {
+            session.sendControl("NotVerified");
+            return;
+        }
+        server.rename(session, user);
+        username = user;
+        room.loggedIn(session);
+    }
 
+    /**
+     * Answer "download &lt;stream&gt; &lt;id&gt; &lt;offset&gt;" with "download &lt;stream&gt; &lt;length&gt; &lt;offset&gt; &lt;name&gt;"
+     * and the chunks, sent by a thread of their own so this one keeps reading the client's messages and acks
+     */
+    private void handleFileDownload(String message) throws IOException {
         System.out.println(message);
         String[] parts = message.split(" ");
-
-        int requestedFileId = Integer.parseInt(message.split(" ")[1]); // Attachment ID
+        int stream;
+        int requestedFileId;
+        long offset;
+        try {
+            stream = Integer.parseInt(parts[1]);
+            requestedFileId = Integer.parseInt(parts[2]); // Attachment ID
+            offset = parts.length > 3 ? Long.parseLong(parts[3]) : 0; // bytes the client already has
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            session.sendControl("nofile " + message.substring("download ".length()));
+            return;
+        }
+        if (offset < 0) {
+            session.sendControl("nofile " + stream + " " + requestedFileId);
+            return;
+        }
         File file = database.getFile(requestedFileId);
-
-        dos.writeUTF(file.getName());
-        dos.flush();
-        dos.writeLong(file.length());
-        dos.flush();
-
-        try (FileInputStream fileInput = new FileInputStream(file)) {
-            byte[] buffer = new byte[bufferSize];
-            int bytesRead;
-
-            while ((bytesRead = fileInput.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                dos.flush();
-            }
+        if (file == null || !file.isFile() || downloads.containsKey(stream)) {
+            session.sendControl("nofile " + stream + " " + requestedFileId);
+            return;
         }
+        ByteBuffer contents = database.getBlobCache().load(file);
+        Download download = contents != null ? new Download(stream, file, contents, offset)
+                : new Download(stream, file, offset, server.getMapThreshold());
+        downloads.put(stream, download);
+        server.startThread(() -> sendFile(download));
 
 //        server.broadcast(Server.ADMIN, "User " + username + " has downloaded a file successfully");
 //        server.broadcast(Server.ADMIN, "[File Name: " + file.getName() + "] [Size: " + getFormatFileSize(file.length()) + "]");
     }
 
+    private void sendFile(Download download) {
+        BufferPool buffers = server.getChunkBuffers();
+        ByteBuffer[] frames = new ByteBuffer[CHUNKS_PER_WRITE];
+        for (int i = 0; i < frames.length; i++) frames[i] = buffers.acquire();
+        try {
+            // frames are self-delimiting, so the chunks may follow the header without waiting for the client
+            byte[] header = Frame.control(download.header());
+            session.write(header, 0, header.length);
+            while (!download.isDone() && download.awaitWindow()) {
+                int count = 0;
+                while (count < frames.length && download.nextChunk(frames[count])) count++;
+                session.write(frames, count);
+            }
+        } catch (IOException e) {
+            if (!(e instanceof SocketException)) e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            downloads.remove(download.stream());
+            download.close();
+            for (ByteBuffer frame : frames) buffers.release(frame);
+        }
+    }
+
     /**
      * Disconnect the client
-     * @param notifyUser whether to notify other users（true: user, false: files）
+     * @param notifyUser whether to notify other users
      * @throws IOException if an I/O error occurs
      */
     private void disconnect(boolean notifyUser) throws IOException {
-        synchronized (Server.sockets) {
-            Server.sockets.remove(server.getAddress(socket));
-        }
-        socket.close();
-
-        if (notifyUser && !username.equals("Guest")) {
-            server.broadcast(Server.ADMIN, "User " + username + " has left the chatroom.");
-        }
+        if (!connected.compareAndSet(true, false)) return; // already disconnected
+        heartbeat.cancel();
+        server.getSessions().remove(session);
+        session.close();
+        for (Download download : downloads.values()) download.close();
+        for (Upload upload : uploads.values()) upload.suspend(); // kept for the client to resume
+        room.leave(session, notifyUser, null);
 
         ChatRoom.printStatus();
-        connected = false;
     }
 
-    private String getFormatFileSize(long length) {
+    static String getFormatFileSize(long length) {
         DecimalFormat df = new DecimalFormat("#0.0");
         df.setRoundingMode(RoundingMode.HALF_UP);
         df.setMinimumFractionDigits(1);
@@ -0,0 +1,100 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many sessions. All TLS, framing and socket work of a session
+ * runs on the loop it was registered with; other threads hand work over with {@link #execute(Runnable)}.
+ */
+class NioEventLoop extends Thread {
+    private final NioServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<NioSession> sessions = new ArrayList<>(); // loop thread only
+    private volatile boolean running = true;
+
+    NioEventLoop(NioServer server, int index) throws IOException {
+        super("nio-loop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Run a task on this loop's thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) selector.wakeup();
+    }
+
+    void listen(ServerSocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    void register(NioSession session) {
+        execute(() -> {
+            try {
+                session.attach(session.channel().register(selector, SelectionKey.OP_READ, session));
+                sessions.add(session);
+                session.onWritable(); // start the handshake
+            } catch (IOException e) {
+                session.close();
+            }
+        });
+    }
+
+    void unregister(NioSession session) {
+        sessions.remove(session);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select(1000);
+                } else {
+                    selector.selectNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        server.accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    NioSession session = (NioSession) key.attachment();
+                    if (key.isReadable()) session.onReadable();
+                    if (key.isValid() && key.isWritable()) session.onWritable();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+        for (NioSession session : new ArrayList<>(sessions)) session.close();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
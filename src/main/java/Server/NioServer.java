@@ -0,0 +1,204 @@
+package Server;
+
+import Utils.Frame;
+import Utils.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import static Utils.ResourceLoader.loadProperties;
+
+/**
+ * Chatroom server built on a small fixed pool of {@link NioEventLoop}s instead of a thread per connection.
+ * Accept, TLS, framing and dispatch run on the loops; database work is handed to a worker pool and bcrypt to
+ * the {@link AuthService}, so a slow query never stalls the sessions sharing a loop.
+ */
+public class NioServer implements ChatServer {
+    private final int localPort;
+    private final String savePath;
+    private final SSLContext sslContext;
+    private final DatabaseConnection database;
+    private final NioEventLoop[] loops;
+    private final ServerSocketChannel serverChannel;
+    private final SessionRegistry<NioSession> sessions = new SessionRegistry<>(); // sessions that sent their username
+    private final ExecutorService workers;    // blocking work: database
+    private final ScheduledExecutorService scheduler;
+    private final HeartbeatWheel heartbeatWheel = new HeartbeatWheel();
+    private final int highWaterMark;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final MessageWriter messageWriter; // saves broadcasts after they are delivered
+    private final AuthService auth; // bcrypt off the session threads, session tokens
+    private final Rooms rooms;
+    private final BufferPool chunkBuffers; // file chunks on their way to the socket
+    private final long mapThreshold;
+    private int nextLoop; // only used by the accepting loop
+
+    public NioServer(int localPort, String chatRoomName) throws Exception {
+        this(localPort, chatRoomName, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public NioServer(int localPort, String chatRoomName, int loopCount) throws Exception {
+        this(localPort, chatRoomName, loopCount, loadProperties());
+    }
+
+    /**
+     * A server with its own configuration instead of config.properties, for benchmarks and tests
+     */
+    public NioServer(int localPort, String chatRoomName, int loopCount, Properties properties) throws Exception {
+        this.highWaterMark = OutboundQueue.highWaterMark(properties);
+        this.overflowPolicy = OutboundQueue.policy(properties);
+        this.localPort = localPort;
+        this.sslContext = Tls.server();
+        this.database = new DatabaseConnection(properties);
+        this.savePath = database.getStagingPath();
+        database.getSearch().open();
+        long stagingRetention = Upload.retention(properties);
+        Upload.cleanStaging(savePath, stagingRetention);
+        this.messageWriter = new MessageWriter(database, MessageWriter.capacity(properties));
+        this.rooms = new Rooms(chatRoomName, database, messageWriter, properties);
+        this.auth = new AuthService(properties);
+        this.chunkBuffers = new BufferPool(Frame.HEADER_SIZE + Frame.CHUNK_SIZE, 64, true);
+        this.mapThreshold = Download.mapThreshold(properties);
+
+        workers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(() -> Upload.cleanStaging(savePath, stagingRetention),
+                Upload.SWEEP_INTERVAL_MILLIS, Upload.SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, i);
+            loops[i].start();
+        }
+
+        // the first loop also accepts
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(localPort));
+        loops[0].listen(serverChannel);
+    }
+
+    /**
+     * Accept pending connections and spread them over the loops (runs on the first loop)
+     */
+    void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+
+            NioEventLoop loop = loops[nextLoop++ % loops.length];
+            NioSession session = new NioSession(this, loop, new TlsConnection(channel, engine));
+            loop.register(session);
+        }
+    }
+
+    /**
+     * Register a session that has sent its username
+     */
+    void join(NioSession session) {
+        sessions.add(session);
+        printStatus();
+    }
+
+    void remove(NioSession session) {
+        sessions.remove(session);
+    }
+
+    void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Print the server's status on a worker, it reads every counter and prints a lot, too slow for an event loop
+     */
+    void printStatus() {
+        submit(ChatRoom::printStatus);
+    }
+
+    @Override
+    public DatabaseConnection getDatabase() {
+        return database;
+    }
+
+    String getSavePath() {
+        return savePath;
+    }
+
+    BufferPool getChunkBuffers() {
+        return chunkBuffers;
+    }
+
+    long getMapThreshold() {
+        return mapThreshold;
+    }
+
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public HeartbeatWheel getHeartbeatWheel() {
+        return heartbeatWheel;
+    }
+
+    @Override
+    public MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    @Override
+    public AuthService getAuth() {
+        return auth;
+    }
+
+    @Override
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public List<OutboundQueue> getOutboundQueues() {
+        List<OutboundQueue> queues = new ArrayList<>();
+        for (NioSession session : sessions.snapshot()) queues.add(session.getOutbound());
+        return queues;
+    }
+
+    @Override
+    public int currentClients() {
+        return sessions.size();
+    }
+
+    @Override
+    public void shutdown() throws IOException, InterruptedException {
+        rooms.closing("The chatroom is about to close");
+        Thread.sleep(1000);
+        serverChannel.close();
+        for (NioEventLoop loop : loops) loop.shutdown();
+        for (NioEventLoop loop : loops) loop.join();
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+        messageWriter.close();
+        rooms.shutdown();
+        auth.shutdown();
+        database.close();
+        scheduler.shutdownNow();
+        heartbeatWheel.shutdown();
+    }
+
+    @Override
+    public int getServerLocalPort() {
+        return localPort;
+    }
+}
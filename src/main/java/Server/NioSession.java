@@ -0,0 +1,597 @@
+package Server;
+
+import Utils.Frame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A client connection served by an {@link NioEventLoop}. Speaks the same {@link Frame} protocol as
+ * {@link MsgTask}, but decodes the frames from the decrypted byte stream instead of blocking on a reader.
+ * Queued frames always go out before file chunks, and downloads take turns a chunk at a time.
+ * Everything except {@link #send(byte[])} must run on the owning loop.
+ */
+class NioSession implements Session {
+    private static final int STAGING_SIZE = 16 * 1024; // one TLS record
+
+    private enum State { NEGOTIATE, HELLO, COMMAND }
+
+    private final NioServer server;
+    private final NioEventLoop loop;
+    private final TlsConnection tls;
+    private final String address;
+    private SelectionKey key;
+    private volatile String username; // Guest until the client logs in on this connection
+    private volatile String verified; // the user the client logged in as on this connection, null if none
+    private volatile Room room; // the room the client is in, null until it has sent its username
+    private final HeartbeatWheel.Timeout heartbeat;
+    private boolean closed;
+
+    private State state = State.NEGOTIATE;
+    private final OutboundQueue outbound;                         // frames from any thread
+    private final ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE); // queued frames batched for one TLS record
+    private byte[] current;                                       // frame partly copied into staging
+    private int currentOffset;
+
+    private final Map<Integer, Upload> uploads = new HashMap<>(); // by stream
+    private final Deque<Download> downloads = new ArrayDeque<>(); // taking turns, a chunk each
+    private ByteBuffer chunk;                                     // pooled chunk frame being written
+
+    NioSession(NioServer server, NioEventLoop loop, TlsConnection tls) {
+        this.server = server;
+        this.loop = loop;
+        this.tls = tls;
+        SocketChannel channel = tls.channel();
+        this.address = channel.socket().getInetAddress() + ":" + channel.socket().getPort();
+        this.heartbeat = server.getHeartbeatWheel().register(() -> loop.execute(() -> disconnect(true)));
+        this.outbound = new OutboundQueue(address, server.getHighWaterMark(), server.getOverflowPolicy(),
+                () -> loop.execute(this::pump), () -> loop.execute(() -> disconnect(true)));
+    }
+
+    SocketChannel channel() {
+        return tls.channel();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isMember() {
+        return room != null;
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Queue bytes for the client, safe to call from any thread
+     */
+    @Override
+    public boolean send(byte[] data) {
+        return outbound.offer(data);
+    }
+
+    private void sendControl(String command) {
+        send(Frame.control(command));
+    }
+
+    void onReadable() {
+        try {
+            tls.read();
+            heartbeat.touch();
+            ByteBuffer in = tls.appIn();
+            in.flip();
+            try {
+                process(in);
+            } finally {
+                in.compact();
+            }
+        } catch (IOException e) {
+            disconnect(true);
+            return;
+        } catch (RuntimeException e) { // a malformed command, e.g. not a number where one belongs
+            e.printStackTrace();
+            disconnect(true);
+            return;
+        }
+        pump();
+    }
+
+    void onWritable() {
+        pump();
+    }
+
+    /**
+     * Drive the handshake and write queued data until done or the socket buffer is full
+     */
+    void pump() {
+        if (closed) return;
+        try {
+            if (!tls.handshake() || !flushOutbound()) {
+                interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                interest(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            disconnect(true);
+        }
+    }
+
+    private boolean flushOutbound() throws IOException {
+        if (tls.isHandshaking()) return true; // the handshake is waiting for the peer
+        while (true) {
+            if (chunk != null && chunk.position() > 0) { // finish a partly written chunk before anything else
+                if (!tls.write(chunk)) return false;
+                releaseChunk();
+                continue;
+            }
+            fillStaging();
+            if (staging.position() > 0) {
+                staging.flip();
+                boolean written = tls.write(staging);
+                staging.compact();
+                if (!written) return false;
+                continue;
+            }
+            if (chunk == null && !nextDownloadChunk()) break;
+            if (!tls.write(chunk)) return false;
+            releaseChunk();
+        }
+        return tls.flush();
+    }
+
+    /**
+     * Copy queued frames into the staging buffer until it is full or the queue is empty
+     */
+    private void fillStaging() {
+        while (staging.hasRemaining()) {
+            if (current == null) {
+                current = outbound.poll();
+                currentOffset = 0;
+                if (current == null) return;
+            }
+            int count = Math.min(staging.remaining(), current.length - currentOffset);
+            staging.put(current, currentOffset, count);
+            currentOffset += count;
+            if (currentOffset == current.length) current = null;
+        }
+    }
+
+    private void interest(int ops) {
+        if (key != null && key.isValid() && key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    private void process(ByteBuffer in) throws IOException {
+        while (!closed) {
+            if (state == State.NEGOTIATE) {
+                if (in.remaining() < Frame.MAGIC.length + 1) return;
+                int version = Frame.agree(in);
+                in.position(in.position() + Frame.MAGIC.length + 1);
+                send(Frame.agreement(version));
+                if (version == 0) {
+                    System.err.println("Rejected " + address + ": not a protocol " + Frame.VERSION + " client");
+                    pump();
+                    disconnect(false);
+                    return;
+                }
+                state = State.HELLO;
+                continue;
+            }
+
+            Frame frame = Frame.decode(in);
+            if (frame == null) return;
+            if (state == State.HELLO) {
+                String hello = frame.type() == Frame.Type.CONTROL ? frame.text() : "";
+                if (!hello.startsWith("hello ")) throw new IOException("Expected hello from " + address);
+                handleUsername(hello.substring(6));
+                continue;
+            }
+            switch (frame.type()) {
+                case TEXT: // normal message
+                    room.broadcast(username, frame.text());
+                    break;
+                case CONTROL:
+                    handleCommand(frame.text());
+                    break;
+                case FILE_CHUNK:
+                    handleFileChunk(frame);
+                    break;
+                case ACK: // the client has room for more of a download
+                    for (Download download : downloads) {
+                        if (download.stream() == frame.stream()) download.ack(frame.offset());
+                    }
+                    break;
+                case HEARTBEAT:
+                    System.out.println(username + " heartbeat");
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void handleUsername(String name) {
+        username = name;
+        state = State.COMMAND;
+        server.join(this);
+        switchRoom(server.getRooms().lobby(), null);
+    }
+
+    private void handleCommand(String message) throws IOException {
+        if ("exit".equals(message)) {
+            disconnect(true); // notify other users
+        }
+        else if (message.startsWith("upload ")) {
+            startUpload(message);
+        }
+        else if (message.startsWith("Register ")) {
+            handleRegistration(message);
+        }
+        else if (message.startsWith("Login ")) {
+            handleLogin(message);
+        }
+        else if (message.startsWith("Resume ")) {
+            handleResume(message);
+        }
+        else if ("upgrade".equals(message)) {
+            handleUpgrade();
+        }
+        else if (message.startsWith("download ")) {
+            handleFileDownload(message);
+        }
+        else if (message.startsWith("history ")) {
+            handleHistory(message);
+        }
+        else if (message.startsWith("search ")) {
+            handleSearch(message);
+        }
+        else if (message.startsWith("join ")) {
+            String name = message.substring(5);
+            // finding or creating the room may read the database
+            server.submit(() -> {
+                Room target = server.getRooms().get(name);
+                loop.execute(() -> switchRoom(target, name));
+            });
+        }
+        else if ("leave".equals(message)) {
+            switchRoom(server.getRooms().lobby(), null);
+        }
+    }
+
+    /**
+     * Answer "join &lt;room&gt;" and "leave", back to the lobby, with "room &lt;name&gt;" once the client is in
+     * the room, or "noroom &lt;room&gt;" if there is no room of that name and none could be created
+     */
+    private void switchRoom(Room target, String name) {
+        if (closed) return;
+        if (target == null) {
+            sendControl("noroom " + name);
+            return;
+        }
+        Room previous = room;
+        if (previous == target) {
+            sendControl("room " + target.name());
+            return;
+        }
+        room = target;
+        server.getRooms().move(this, previous, target);
+    }
+
+    /**
+     * Answer "history &lt;stream&gt; &lt;before&gt; &lt;count&gt;" with a page of messages on that stream
+     * and "history &lt;stream&gt; &lt;count&gt; &lt;before&gt;" naming where the page before it starts,
+     * "bad history" if the request is malformed
+     */
+    private void handleHistory(String message) {
+        String[] parts = message.split(" ");
+        int stream;
+        int before;
+        int count;
+        try {
+            stream = Integer.parseInt(parts[1]);
+            before = Integer.parseInt(parts[2]);
+            count = HistoryPage.size(Integer.parseInt(parts[3]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            sendControl("bad history");
+            return;
+        }
+        server.submit(() -> {
+            // the latest page comes from the recent history, it has what the database does not yet
+            HistoryPage page = before > 0 ? room.history(before, count) : room.history(count);
+            for (String msg : page.messages()) send(Frame.text(stream, msg));
+            sendControl("history " + stream + " " + page.messages().size() + " " + page.before());
+        });
+    }
+
+    /**
+     * Answer "search &lt;stream&gt; &lt;offset&gt; &lt;count&gt; &lt;query&gt;" with the matching messages on that stream
+     * and "search &lt;stream&gt; &lt;count&gt; &lt;total&gt;" with the number of matches in all,
+     * "bad search" if the request is malformed
+     */
+    private void handleSearch(String message) {
+        String[] parts = message.split(" ", 5);
+        if (parts.length < 5) {
+            sendControl("bad search");
+            return;
+        }
+        int stream;
+        int offset;
+        int count;
+        try {
+            stream = Integer.parseInt(parts[1]);
+            offset = Math.max(0, Integer.parseInt(parts[2]));
+            count = HistoryPage.size(Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            sendControl("bad search");
+            return;
+        }
+        server.submit(() -> {
+            MessageSearch.Results results = room.search(parts[4], offset, count);
+            for (String msg : results.messages()) send(Frame.text(stream, msg));
+            sendControl("search " + stream + " " + results.messages().size() + " " + results.total());
+        });
+    }
+
+    private void handleRegistration(String message) {
+        String[] credentials = message.substring(9).split(" ");
+        String newUsername = credentials[0];
+        boolean queued = server.getAuth().execute(() -> {
+            try {
+                server.getDatabase().createUser(newUsername, credentials[1]);
+            } catch (SQLException e) {
+                if (e.getMessage().contains("Duplicate entry")) {
+                    sendControl("Duplicate");
+                } else {
+                    sendControl("RegFail");
+                    e.printStackTrace();
+                }
+                return;
+            }
+            sendControl("RegSucc");
+            server.getRooms().lobby().broadcast(Server.ADMIN, "A new user " + newUsername + " has successfully registered!");
+        });
+        if (!queued) {
+            sendControl("Busy");
+            sendControl("RegFail"); // clients before version 7 only wait for this
+        }
+    }
+
+    /**
+     * Check the password on the auth threads; "token &lt;token&gt;" comes before "Verified"
+     */
+    private void handleLogin(String message) {
+        String[] credentials = message.substring(6).split(" ");
+        AuthService auth = server.getAuth();
+        boolean queued = auth.execute(() -> {
+            if (server.getDatabase().verifyUser(credentials[0], credentials[1])) {
+                verified = credentials[0];
+                sendControl("token " + auth.issue(credentials[0]));
+                sendControl("Verified");
+            } else {
+                sendControl("NotVerified");
+            }
+        });
+        if (!queued) {
+            sendControl("Busy");
+            sendControl("NotVerified");
+        }
+    }
+
+    /**
+     * "Resume &lt;token&gt;" logs in again with a token from an earlier login, checked on the loop: no bcrypt, no database
+     */
+    private void handleResume(String message) {
+        AuthService auth = server.getAuth();
+        String user = auth.verify(message.substring(7));
+        if (user != null) {
+            verified = user;
+            sendControl("token " + auth.issue(user));
+            sendControl("Verified");
+        } else {
+            sendControl("NotVerified");
+        }
+    }
+
+    /**
+     * "upgrade" turns a guest connection that has logged in into that user's chat session, answered with
+     * "room &lt;name&gt;" like a hello; the client needs no second connection
+     */
+    private void handleUpgrade() {
+        String user = verified;
+        if (user == null || !"Guest".equals(username)) {
+            sendControl("NotVerified");
+            return;
+        }
+        server.remove(this); // the sessions are indexed by username
+        username = user;
+        server.join(this);
+        room.loggedIn(this);
+    }
+
+    /**
+     * "upload &lt;stream&gt; file|voice &lt;length&gt; &lt;transfer&gt; &lt;digest&gt; &lt;name&gt;", answered with the offset
+     * to continue from, the whole length if the user already stored the contents; the chunks follow on that stream
+     */
+    private void startUpload(String message) {
+        String uploader = username;
+        // the client waits for the reply before sending chunks, so opening the staging file, which hashes
+        // what a resumed upload holds, and the lookup can leave the loop
+        server.submit(() -> {
+            Upload upload;
+            try {
+                upload = new Upload(message, uploader, server.getSavePath());
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                loop.execute(() -> disconnect(true));
+                return;
+            }
+            boolean stored = server.getDatabase().hasBlob(upload.claimedDigest(), uploader);
+            loop.execute(() -> {
+                if (closed) {
+                    upload.suspend();
+                    return;
+                }
+                if (uploads.putIfAbsent(upload.stream(), upload) != null) {
+                    upload.suspend();
+                    System.err.println("Stream " + upload.stream() + " of " + address + " is already in use");
+                    disconnect(true);
+                    return;
+                }
+                if (stored) upload.skip();
+                sendControl(upload.resumeReply());
+                if (upload.isComplete()) finishUpload(upload);
+                pump();
+            });
+        });
+    }
+
+    private void handleFileChunk(Frame frame) throws IOException {
+        Upload upload = uploads.get(frame.stream());
+        if (upload == null) throw new IOException("Unexpected file chunk from " + address);
+        long ack = upload.write(frame.payload());
+        if (ack >= 0) send(Frame.ack(upload.stream(), ack));
+        if (upload.isComplete()) finishUpload(upload);
+    }
+
+    private void finishUpload(Upload upload) {
+        uploads.remove(upload.stream());
+        Room uploadRoom = room;
+        server.submit(() -> {
+            try {
+                if (!upload.finish(server, uploadRoom, username)) {
+                    sendControl("resend " + upload.stream()); // the client starts the upload over
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            send(Frame.ack(upload.stream(), upload.length())); // stored and announced
+        });
+    }
+
+    /**
+     * Answer "download &lt;stream&gt; &lt;id&gt; &lt;offset&gt;" with "download &lt;stream&gt; &lt;length&gt; &lt;offset&gt; &lt;name&gt;"
+     * and the chunks on that stream
+     */
+    private void handleFileDownload(String message) {
+        System.out.println(message);
+        String[] parts = message.split(" ");
+        int stream;
+        int requestedFileId;
+        long offset;
+        try {
+            stream = Integer.parseInt(parts[1]);
+            requestedFileId = Integer.parseInt(parts[2]); // Attachment ID
+            offset = parts.length > 3 ? Long.parseLong(parts[3]) : 0; // bytes the client already has
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            sendControl("nofile " + message.substring("download ".length()));
+            return;
+        }
+        if (offset < 0) {
+            sendControl("nofile " + stream + " " + requestedFileId);
+            return;
+        }
+        server.submit(() -> {
+            File file = server.getDatabase().getFile(requestedFileId);
+            if (file == null || !file.isFile()) {
+                sendControl("nofile " + stream + " " + requestedFileId);
+                return;
+            }
+            ByteBuffer contents = server.getDatabase().getBlobCache().load(file); // null if read from disk
+            loop.execute(() -> startDownload(stream, requestedFileId, file, contents, offset));
+        });
+    }
+
+    private void startDownload(int stream, int fileId, File file, ByteBuffer contents, long offset) {
+        if (closed) return;
+        for (Download download : downloads) {
+            if (download.stream() == stream) {
+                sendControl("nofile " + stream + " " + fileId);
+                return;
+            }
+        }
+        try {
+            Download download = contents != null ? new Download(stream, file, contents, offset)
+                    : new Download(stream, file, offset, server.getMapThreshold());
+            // queued frames go out before any chunk, so the header is ahead of its chunks
+            sendControl(download.header());
+            downloads.add(download);
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendControl("nofile " + stream + " " + fileId);
+        }
+        pump();
+    }
+
+    /**
+     * Read the next chunk frame, from the first download in turn whose window is open
+     * @return false if no download can send now
+     */
+    private boolean nextDownloadChunk() throws IOException {
+        if (downloads.isEmpty()) return false;
+        ByteBuffer buffer = server.getChunkBuffers().acquire();
+        for (int i = downloads.size(); i > 0; i--) {
+            Download download = downloads.poll();
+            if (download.nextChunk(buffer)) {
+                if (download.isDone()) {
+                    download.close();
+                } else {
+                    downloads.add(download);
+                }
+                chunk = buffer;
+                return true;
+            }
+            downloads.add(download); // waiting for the client's ack
+        }
+        server.getChunkBuffers().release(buffer);
+        return false;
+    }
+
+    private void releaseChunk() {
+        server.getChunkBuffers().release(chunk);
+        chunk = null;
+    }
+
+    /**
+     * Disconnect the client
+     * @param notifyUser whether to notify other users
+     */
+    void disconnect(boolean notifyUser) {
+        if (closed) return;
+        closed = true;
+        heartbeat.cancel();
+        loop.unregister(this);
+        server.remove(this);
+        tls.close();
+        for (Upload upload : uploads.values()) upload.suspend(); // kept for the client to resume
+        for (Download download : downloads) download.close();
+        if (chunk != null) releaseChunk();
+
+        if (room != null) room.leave(this, notifyUser, null);
+        server.printStatus();
+    }
+
+    void close() {
+        disconnect(false);
+    }
+}
@@ -0,0 +1,153 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Broadcasting only offers frames here; the session's writer drains them, so a client with a full
+ * TCP window only slows down itself. What happens at the high-water mark is set by the {@link OverflowPolicy}.
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_HIGH_WATER_MARK = 1024;
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,  // discard the oldest queued frame to make room
+        DISCONNECT,   // evict the client, it will have to reconnect
+        MARK_LAGGING  // keep queuing up to twice the mark, flag the client as lagging, then drop oldest
+    }
+
+    private final String name;
+    private final int highWaterMark;
+    private final OverflowPolicy policy;
+    private final Runnable onReady; // schedules the writer when frames arrive in an idle queue
+    private final Runnable onEvict; // disconnects the client under OverflowPolicy.DISCONNECT
+
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private boolean scheduled;
+    private volatile boolean lagging;
+    private volatile boolean evicted;
+    private volatile int depth;
+    private volatile long dropped;
+
+    public OutboundQueue(String name, int highWaterMark, OverflowPolicy policy, Runnable onReady, Runnable onEvict) {
+        this.name = name;
+        this.highWaterMark = Math.max(1, highWaterMark);
+        this.policy = policy;
+        this.onReady = onReady;
+        this.onEvict = onEvict;
+    }
+
+    /**
+     * Queue a frame for the client
+     * @return false if the frame was not queued because the client has been evicted
+     */
+    public boolean offer(byte[] frame) {
+        boolean schedule = false;
+        boolean evict = false;
+        lock.lock();
+        try {
+            if (evicted) return false;
+            if (frames.size() >= highWaterMark) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        frames.poll();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        dropped += frames.size();
+                        frames.clear();
+                        evicted = true;
+                        evict = true;
+                        break;
+                    case MARK_LAGGING:
+                        lagging = true;
+                        if (frames.size() >= 2 * highWaterMark) {
+                            frames.poll();
+                            dropped++;
+                        }
+                        break;
+                }
+            }
+            if (!evict) {
+                frames.add(frame);
+                if (!scheduled) {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+            depth = frames.size();
+        } finally {
+            lock.unlock();
+        }
+
+        if (evict) {
+            System.err.println("Evicting slow client " + name + " (" + highWaterMark + " frames queued)");
+            onEvict.run();
+            return false;
+        }
+        if (schedule) onReady.run();
+        return true;
+    }
+
+    /**
+     * Take the next frame for the writer
+     * @return null when the queue is empty, the writer must then stop until the next onReady
+     */
+    public byte[] poll() {
+        lock.lock();
+        try {
+            byte[] frame = frames.poll();
+            if (frame == null) {
+                scheduled = false;
+            }
+            depth = frames.size();
+            if (lagging && depth < highWaterMark / 2) lagging = false;
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Frames discarded because the client fell behind
+     */
+    public long droppedCount() {
+        return dropped;
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Read server.outbound.highwater from the configuration
+     */
+    public static int highWaterMark(Properties properties) {
+        String value = properties.getProperty("server.outbound.highwater");
+        return value == null ? DEFAULT_HIGH_WATER_MARK : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Read server.outbound.policy from the configuration
+     */
+    public static OverflowPolicy policy(Properties properties) {
+        String value = properties.getProperty("server.outbound.policy");
+        return value == null ? OverflowPolicy.DISCONNECT : OverflowPolicy.valueOf(value.trim());
+    }
+}
@@ -0,0 +1,297 @@
+package Server;
+
+import Utils.Frame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A chat room, run as an actor: its members, the order of its messages and their fan-out are only touched by
+ * tasks from its mailbox, run one at a time, so every member sees the same order and membership needs no lock.
+ * The tasks run on whichever thread of the {@link Rooms} pool is free; a busy room gives the thread back after
+ * {@link #BATCH} of them, so the rooms sharing the pool all keep going.
+ * In a {@link Cluster}, messages are put in order by the node that owns the room and relayed to the others.
+ */
+public class Room implements Runnable {
+    static final int BATCH = 64; // tasks run per turn on a pool thread
+
+    private final int id;
+    private final String name;
+    private final HistoryRing history; // recent messages, older ones are read from the database
+    private final DatabaseConnection database;
+    private final MessageWriter messageWriter;
+    private final Executor pool;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final List<Session> members = new ArrayList<>(); // only touched by the room's tasks
+    private volatile int memberCount;
+    private final Cluster cluster; // null when the server runs alone
+    // messages relayed by the owner in a cluster, by position there, until it says what id they were saved with
+    private final Map<Long, Unsaved> unsaved;
+    private long relayRun;
+    private long lastRelayed = -1;
+
+    private static final class Unsaved {
+        final long position; // in this node's history
+        final String text;
+
+        Unsaved(long position, String text) {
+            this.position = position;
+            this.text = text;
+        }
+    }
+
+    Room(int id, String name, int historyCapacity, DatabaseConnection database, MessageWriter messageWriter, Executor pool,
+         Cluster cluster) {
+        this.id = id;
+        this.name = name;
+        this.history = new HistoryRing(historyCapacity);
+        this.database = database;
+        this.messageWriter = messageWriter;
+        this.pool = pool;
+        this.cluster = cluster;
+        int kept = cluster == null ? 0 : cluster.queueCapacity();
+        this.unsaved = new LinkedHashMap<Long, Unsaved>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Unsaved> eldest) {
+                return size() > kept; // as many as the owner can have queued for us, or its id never came
+            }
+        };
+    }
+
+    /**
+     * The room's id in the database
+     */
+    public int id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int memberCount() {
+        return memberCount;
+    }
+
+    /**
+     * Tasks waiting in the mailbox, for monitoring
+     */
+    public int backlog() {
+        return mailbox.size();
+    }
+
+    /**
+     * Queue a task for the room, it runs after every task queued before it
+     */
+    void tell(Runnable task) {
+        mailbox.add(task);
+        if (scheduled.compareAndSet(false, true)) pool.execute(this);
+    }
+
+    /**
+     * One turn on a pool thread
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable task = mailbox.poll();
+            if (task == null) break;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+        // a task queued after the last poll found the room still scheduled, so it is picked up here
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) pool.execute(this);
+    }
+
+    /**
+     * Send a message to every member, then save it in the background
+     */
+    public void broadcast(String from, String msg) {
+        tell(() -> post(from, msg, -1));
+    }
+
+    /**
+     * Send a message that has already been saved, e.g. together with its attachment
+     * @param messageId the id it was saved with
+     */
+    public void deliver(String from, String msg, int messageId) {
+        tell(() -> post(from, msg, messageId));
+    }
+
+    /**
+     * Send a message to the members on this server only, e.g. that it is closing; it is not kept
+     */
+    public void notice(String from, String msg) {
+        tell(() -> send(from, msg));
+    }
+
+    /**
+     * Put a message in the room's order: here, or on the node that owns the room in a cluster
+     * @param messageId the id it was saved with, -1 to save it
+     */
+    private void post(String from, String msg, int messageId) {
+        if (cluster != null && !cluster.owns(id)) cluster.forward(this, from, msg, messageId);
+        else publish(from, msg, messageId, cluster == null ? 0 : cluster.node());
+    }
+
+    /**
+     * @param savedBy the node that saved the message, its search index has it already
+     */
+    private void publish(String from, String msg, int messageId, int savedBy) {
+        long position = history.append(from, msg);
+        send(from, msg);
+        if (cluster != null) cluster.relay(this, position, from, msg);
+        if (messageId >= 0) {
+            history.saved(position, messageId);
+            if (cluster == null) return;
+            if (savedBy != cluster.node()) database.getSearch().add(messageId, id, msg);
+            cluster.saved(this, position, messageId, savedBy);
+            return;
+        }
+        messageWriter.save(id, from, msg).thenAccept(savedId -> {
+            if (savedId >= 0) history.saved(position, savedId);
+            if (cluster != null) cluster.saved(this, position, savedId, cluster.node());
+        });
+    }
+
+    private void send(String from, String msg) {
+        byte[] frame = SocketSession.encode(from, msg); // encoded once, shared by every member
+        for (Session member : members) member.send(frame);
+    }
+
+    /**
+     * A message another node forwarded to this one, the room's owner
+     * @param messageId the id the other node saved it with, -1 to save it here
+     * @param node the node it came from
+     */
+    void forwarded(String from, String msg, int messageId, int node) {
+        tell(() -> publish(from, msg, messageId, node));
+    }
+
+    /**
+     * A message put in order by the node owning the room
+     * @param run the owner's run, a restarted owner counts positions from 0 again
+     * @param position where the owner keeps it in its history
+     */
+    void relayed(long run, long position, String from, String msg) {
+        tell(() -> {
+            if (run < relayRun || (run == relayRun && position <= lastRelayed)) {
+                cluster.duplicate();
+                return;
+            }
+            if (run > relayRun) {
+                relayRun = run;
+                unsaved.clear();
+            }
+            lastRelayed = position;
+            unsaved.put(position, new Unsaved(history.append(from, msg), msg));
+            send(from, msg);
+        });
+    }
+
+    /**
+     * The database id a relayed message was saved with, -1 if it could not be
+     * @param savedBy the node that saved it
+     */
+    void savedElsewhere(long run, long position, int messageId, int savedBy) {
+        tell(() -> {
+            Unsaved message = run == relayRun ? unsaved.remove(position) : null;
+            if (message == null || messageId < 0) return;
+            history.saved(message.position, messageId);
+            // an index in memory only sees what this node saves
+            if (savedBy != cluster.node()) database.getSearch().add(messageId, id, message.text);
+        });
+    }
+
+    /**
+     * Add a session to the members: it is told the room's name, then gets every message sent after that,
+     * and everyone is told it came unless it is a guest
+     */
+    void join(Session session) {
+        tell(() -> {
+            if (members.contains(session)) return;
+            members.add(session);
+            memberCount = members.size();
+            session.send(Frame.control("room " + name));
+            if (!session.getUsername().equals("Guest")) {
+                post(Server.ADMIN, "Welcome " + session.getUsername(), -1);
+            }
+        });
+    }
+
+    /**
+     * A guest that logged in on its connection and now chats under its username: it is told the room's name,
+     * as after joining, and everyone is told it came
+     */
+    void loggedIn(Session session) {
+        tell(() -> {
+            session.send(Frame.control("room " + name)); // the client waits for this, member or not
+            if (members.contains(session)) post(Server.ADMIN, "Welcome " + session.getUsername(), -1);
+        });
+    }
+
+    /**
+     * Remove a session from the members
+     * @param notifyUsers whether to tell the others it left
+     * @param then run by the room once the session gets no more of its messages, null for nothing
+     */
+    void leave(Session session, boolean notifyUsers, Runnable then) {
+        tell(() -> {
+            if (members.remove(session)) {
+                memberCount = members.size();
+                if (notifyUsers && !session.getUsername().equals("Guest")) {
+                    post(Server.ADMIN, "User " + session.getUsername() + " has left the chatroom.", -1);
+                }
+            }
+            if (then != null) then.run();
+        });
+    }
+
+    /**
+     * The last count messages, read from the database where they go back further than the recent history.
+     * Only the room's tasks change the history, readers take a consistent snapshot of it without waiting for them.
+     */
+    public HistoryPage history(int count) {
+        List<String> recent = new ArrayList<>();
+        int before = history.snapshot(count, recent);
+        if (before < 0) return new HistoryPage(recent, -1); // the rest is not saved yet
+        if (recent.size() >= count) return new HistoryPage(recent, before);
+        HistoryPage older = database.loadMessages(id, before, count - recent.size());
+        older.messages().addAll(recent);
+        return older;
+    }
+
+    /**
+     * A page of the room's history before a message, from the database
+     */
+    public HistoryPage history(int beforeId, int count) {
+        return database.loadMessages(id, beforeId, count);
+    }
+
+    /**
+     * The messages kept in memory, as "sender: message", oldest first
+     */
+    public List<String> recentMessages() {
+        List<String> messages = new ArrayList<>();
+        history.snapshot(history.capacity(), messages);
+        return messages;
+    }
+
+    /**
+     * Messages of the room containing every word of the query, best match first
+     */
+    public MessageSearch.Results search(String query, int offset, int limit) {
+        return database.searchMessages(id, query, offset, limit);
+    }
+}
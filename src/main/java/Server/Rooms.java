@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The rooms of a server, each a {@link Room} actor, and the fixed pool of threads they run on.
+ * A room is created the first time someone joins it and stays, with its history, until the server stops.
+ * Sessions start in the lobby, the room named after the server, which is the room with id 1 in the database.
+ * With cluster.nodes set, the rooms are shared with the other servers listed there, see {@link Cluster}.
+ */
+public class Rooms {
+    public static final int MAX_NAME_LENGTH = 100; // rooms.name in database.sql
+    private static final int LOBBY_ID = 1;
+
+    private final DatabaseConnection database;
+    private final MessageWriter messageWriter;
+    private final int historyCapacity;
+    private final ExecutorService pool;
+    private final ConcurrentHashMap<String, Room> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Room> byId = new ConcurrentHashMap<>();
+    private final Cluster cluster; // null when the server runs alone
+    private final Room lobby;
+
+    public Rooms(String lobbyName, DatabaseConnection database, MessageWriter messageWriter, Properties properties) throws IOException {
+        this.database = database;
+        this.messageWriter = messageWriter;
+        this.historyCapacity = HistoryRing.capacity(properties);
+        AtomicInteger threads = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads(properties), r -> {
+            Thread thread = new Thread(r, "room-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cluster = Cluster.fromProperties(properties, this);
+        this.lobby = new Room(LOBBY_ID, lobbyName, historyCapacity, database, messageWriter, pool, cluster);
+        byName.put(lobbyName, lobby);
+        byId.put(LOBBY_ID, lobby);
+        if (cluster != null) cluster.start();
+    }
+
+    /**
+     * Read server.rooms.threads from the configuration, one per core by default
+     */
+    static int threads(Properties properties) {
+        String value = properties.getProperty("server.rooms.threads");
+        return value == null ? Runtime.getRuntime().availableProcessors() : Math.max(1, Integer.parseInt(value.trim()));
+    }
+
+    /**
+     * The room sessions join when they connect
+     */
+    public Room lobby() {
+        return lobby;
+    }
+
+    /**
+     * The room with this name, created in the database if there is none; reads the database the first time
+     * @return null if the name is not valid or the room could not be created
+     */
+    public Room get(String name) {
+        name = name.trim();
+        Room room = byName.get(name);
+        if (room != null) return room;
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) return null;
+        int id = database.roomId(name);
+        if (id < 0) return null;
+        // a name mapping to a room that is already running, e.g. the lobby by its name in the database
+        String roomName = name;
+        room = byId.computeIfAbsent(id, key -> new Room(key, roomName, historyCapacity, database, messageWriter, pool, cluster));
+        Room previous = byName.putIfAbsent(roomName, room);
+        return previous != null ? previous : room;
+    }
+
+    /**
+     * The running room with this id, null if there is none
+     */
+    Room byId(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * The other servers sharing these rooms, null if there are none
+     */
+    public Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * Take a session from one room to another: it gets no message of the new room before it has left the old one
+     * @param from the session's room, null if it is in none
+     */
+    public void move(Session session, Room from, Room to) {
+        if (from == null) {
+            to.join(session);
+        } else {
+            from.leave(session, true, () -> to.join(session));
+        }
+    }
+
+    public List<Room> all() {
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * Tell every room's members the server is closing. In a cluster the rooms go on on the other nodes,
+     * so only the members on this one are told and the notice is not kept.
+     */
+    public void closing(String msg) {
+        for (Room room : all()) {
+            if (cluster == null) room.broadcast(Server.ADMIN, msg);
+            else room.notice(Server.ADMIN, msg);
+        }
+    }
+
+    /**
+     * Stop the room threads once the rooms have run what they were told so far, then the links to other nodes
+     */
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+        if (cluster != null) cluster.shutdown();
+    }
+}
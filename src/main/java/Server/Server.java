@@ -1,142 +1,241 @@
 package Server;
 
+import Utils.Frame;
+import Utils.Tls;
+
 import javax.net.ssl.*;
 import java.io.*;
-import java.security.KeyStore;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import static Utils.ResourceLoader.loadProperties;
 
 
-public class Server {
+public class Server implements ChatServer {
 
     private static String SAVE_PATH;
 
-    public static final Map<String, SSLSocket> sockets = new LinkedHashMap<>();
+    // connected sessions, broadcasts iterate a snapshot so joins and leaves never wait for a fan-out
+    private final SessionRegistry<SocketSession> sessions = new SessionRegistry<>();
     public static final String ADMIN = "System";
     private final int localPort;
     private SSLServerSocket server;
-    private SSLServerSocket[] fileServers;
-    private final String chatRoomName;
+    private final boolean virtualThreads;
+    private final HeartbeatWheel heartbeatWheel = new HeartbeatWheel();
+    private final Executor writers; // drains the sessions' outbound queues
+    private final int highWaterMark;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final DatabaseConnection database;
+    private final MessageWriter messageWriter; // saves broadcasts after they are delivered
+    private final AuthService auth; // bcrypt off the session threads, session tokens
+    private final Rooms rooms;
+    private final BufferPool chunkBuffers; // file chunks on their way to the socket
+    private final long mapThreshold;
+    private final ScheduledExecutorService stagingSweeper; // deletes uploads that were never resumed
 
 
     public Server(int localPort, String chatRoomName) throws Exception {
-        Properties properties = loadProperties();
-        SAVE_PATH = properties.getProperty("server.tmpdir"); //TODO: Change this path in config.properties
-
-        this.localPort = localPort;
-        this.chatRoomName = chatRoomName;
-
-        // Load server keystore
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(new FileInputStream("server.keystore"), "123456".toCharArray());
+        this(localPort, chatRoomName, false);
+    }
 
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-        keyManagerFactory.init(keyStore, "123456".toCharArray());
+    /**
+     * @param virtualThreads run the accept loops, sessions and heartbeat monitors on virtual threads
+     */
+    public Server(int localPort, String chatRoomName, boolean virtualThreads) throws Exception {
+        this(localPort, chatRoomName, virtualThreads, loadProperties());
+    }
 
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    /**
+     * A server with its own configuration instead of config.properties, for benchmarks and tests
+     */
+    public Server(int localPort, String chatRoomName, boolean virtualThreads, Properties properties) throws Exception {
+        this.localPort = localPort;
+        this.virtualThreads = virtualThreads;
+        this.writers = virtualThreads ? task -> Threads.start(task, true) : Executors.newCachedThreadPool();
+        this.highWaterMark = OutboundQueue.highWaterMark(properties);
+        this.overflowPolicy = OutboundQueue.policy(properties);
+        this.database = new DatabaseConnection(properties);
+        SAVE_PATH = database.getStagingPath();
+        database.getSearch().open();
+        long stagingRetention = Upload.retention(properties);
+        Upload.cleanStaging(SAVE_PATH, stagingRetention);
+        this.stagingSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "staging-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stagingSweeper.scheduleWithFixedDelay(() -> Upload.cleanStaging(SAVE_PATH, stagingRetention),
+                Upload.SWEEP_INTERVAL_MILLIS, Upload.SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.messageWriter = new MessageWriter(database, MessageWriter.capacity(properties));
+        this.rooms = new Rooms(chatRoomName, database, messageWriter, properties);
+        this.auth = new AuthService(properties);
+        // SSLSocket streams take arrays, so heap buffers
+        this.chunkBuffers = new BufferPool(Frame.HEADER_SIZE + Frame.CHUNK_SIZE, 64, false);
+        this.mapThreshold = Download.mapThreshold(properties);
+        if (virtualThreads && !Threads.virtualThreadsAvailable()) {
+            System.err.println("Virtual threads are not available on this JVM, using platform threads.");
+        }
 
-        SSLServerSocketFactory socketFactory = sslContext.getServerSocketFactory();
+        SSLServerSocketFactory socketFactory = Tls.server().getServerSocketFactory();
         server = (SSLServerSocket) socketFactory.createServerSocket(localPort);
 
-        // Initialize file servers
-        fileServers = new SSLServerSocket[5];
-        for (int i = 0; i < fileServers.length; i++) {
-            fileServers[i] = (SSLServerSocket) socketFactory.createServerSocket(localPort + i + 1);
-        }
-
         startListen();
     }
 
     private void startListen() throws IOException {
-        createClientHandlerThread(server, true);
-
-        for (SSLServerSocket fileServer : fileServers) {
-            createClientHandlerThread(fileServer, false);
-        }
+        createClientHandlerThread(server);
     }
 
     /**
-     * Create a new thread to handle client connections
+     * Create a new thread to handle client connections; file transfers share the client's connection
      * @param serverSocket the server socket to accept connections
-     * @param isMainServer whether this server is the main server
      */
-    private void createClientHandlerThread(SSLServerSocket serverSocket, boolean isMainServer) {
-        new Thread(() -> {
+    private void createClientHandlerThread(SSLServerSocket serverSocket) {
+        startThread(() -> {
             try {
                 while (true) {
                     SSLSocket socket = (SSLSocket) serverSocket.accept();
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    String username = in.readLine();
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-                    if (isMainServer) {
-                        out.write(chatRoomName + "\r\n");
-                        out.flush();
-                        synchronized (sockets) {
-                            if(!username.equals("Guest")) {
-                                broadcast(ADMIN, "Welcome " + username);
-                            }
-                            sockets.put(getAddress(socket), socket);
-                            ChatRoom.printStatus();
-                        }
-                    } else {
-                        synchronized (sockets) {
-                            sockets.put(getAddress(socket), socket);
-                            ChatRoom.printStatus();
-                        }
-                    }
-
-                    new Thread(new MsgTask(this, SAVE_PATH, socket, in, out, username)).start();
+                    long accepted = System.currentTimeMillis();
+                    socket.addHandshakeCompletedListener(event -> Tls.SERVER_HANDSHAKES.completed(event.getSession(), accepted));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    String username = hello(socket, in);
+                    if (username == null) continue;
+                    SocketSession session = new SocketSession(socket, username, writers, highWaterMark, overflowPolicy);
+
+                    sessions.add(session);
+                    ChatRoom.printStatus();
+
+                    startThread(new MsgTask(this, SAVE_PATH, session, in));
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
+    }
+
+    /**
+     * A session now chats under another username, after logging in on its connection
+     */
+    void rename(SocketSession session, String username) {
+        sessions.remove(session);
+        session.setUsername(username);
+        sessions.add(session);
+    }
+
+    /**
+     * Negotiate the protocol and read the client's hello
+     * @return the username, null if the client was turned away
+     */
+    private static String hello(SSLSocket socket, DataInputStream in) {
+        try {
+            if (Frame.accept(in, socket.getOutputStream()) != 0) {
+                Frame hello = Frame.read(in);
+                if (hello != null && hello.type() == Frame.Type.CONTROL && hello.text().startsWith("hello ")) {
+                    return hello.text().substring(6);
+                }
+            }
+            System.err.println("Rejected " + socket.getInetAddress() + ":" + socket.getPort() + ": not a protocol " + Frame.VERSION + " client");
+        } catch (IOException e) {
+            System.err.println("Handshake with " + socket.getInetAddress() + ":" + socket.getPort() + " failed: " + e.getMessage());
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        return null;
     }
 
+    /**
+     * Start a server thread, virtual if this server runs in virtual-thread mode
+     */
+    Thread startThread(Runnable task) {
+        return Threads.start(task, virtualThreads);
+    }
+
+    @Override
+    public HeartbeatWheel getHeartbeatWheel() {
+        return heartbeatWheel;
+    }
+
+    /**
+     * The connected sessions of this server
+     */
+    public SessionRegistry<SocketSession> getSessions() {
+        return sessions;
+    }
+
+    BufferPool getChunkBuffers() {
+        return chunkBuffers;
+    }
+
+    long getMapThreshold() {
+        return mapThreshold;
+    }
+
+    @Override
+    public DatabaseConnection getDatabase() {
+        return database;
+    }
+
+    @Override
+    public MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    @Override
+    public AuthService getAuth() {
+        return auth;
+    }
+
+    @Override
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public List<OutboundQueue> getOutboundQueues() {
+        List<OutboundQueue> queues = new ArrayList<>();
+        for (SocketSession session : sessions.snapshot()) queues.add(session.getOutbound());
+        return queues;
+    }
+
+    @Override
     public int currentClients() {
-        return sockets.size();
+        return sessions.size();
     }
 
+    @Override
     public void shutdown() throws IOException, InterruptedException {
         if (server == null) return;
-        broadcast(ADMIN, "The chatroom is about to close");
+        rooms.closing("The chatroom is about to close");
         Thread.sleep(1000);
-        synchronized (sockets) {
-            for (SSLSocket socket : sockets.values()) {
-                socket.shutdownInput();
-                socket.shutdownOutput();
-                socket.close();
-            }
-            sockets.clear();
+        for (SocketSession session : sessions.snapshot()) {
+            SSLSocket socket = session.getSocket();
+            socket.shutdownInput();
+            socket.shutdownOutput();
+            socket.close();
+            sessions.remove(session);
         }
         server.close();
-    }
-
-    public int broadcast(String from, String msg) throws IOException {
-        int msgId= new DatabaseConnection().saveMsg(from, msg);
-        ChatRoom.saveMsg(from + ": " + msg);
-        PrintWriter out;
-        synchronized (sockets) {
-            for (SSLSocket socket : sockets.values()) {
-                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "GBK"));
-                out.write(from + ": " + msg + "\r\n");
-                out.flush();
-            }
-        }
-        return msgId;
+        messageWriter.close();
+        rooms.shutdown();
+        auth.shutdown();
+        database.close();
+        heartbeatWheel.shutdown();
+        stagingSweeper.shutdownNow();
+        if (writers instanceof ExecutorService) ((ExecutorService) writers).shutdown();
     }
 
     public void OfflineMsg(SSLSocket skt) throws IOException {
-        PrintWriter out;
-        synchronized (ChatRoom.msgList) {   
-            for (String str : ChatRoom.msgList) {
-                out = new PrintWriter(new OutputStreamWriter(skt.getOutputStream(), "GBK"));
-                out.write(str + "\r\n");
-                out.flush();
-            }
+        List<String> history = ChatRoom.recentMessages();
+        OutputStream out = new BufferedOutputStream(skt.getOutputStream());
+        for (String str : history) {
+            out.write(Frame.text(str));
         }
+        out.flush();
     }
 
 
@@ -144,6 +243,7 @@ public class Server {
         return socket.getInetAddress() + ":" + socket.getPort();
     }
 
+    @Override
     public int getServerLocalPort() {
         return localPort;
     }
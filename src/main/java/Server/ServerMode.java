@@ -0,0 +1,10 @@
+package Server;
+
+/**
+ * The engine a chatroom server runs on, chosen at {@link ChatRoom#create(String, int, ServerMode)} time.
+ */
+public enum ServerMode {
+    THREAD_PER_CONNECTION, // blocking SSLServerSocket, one MsgTask thread per connection
+    VIRTUAL_THREADS,       // same as above on virtual threads (Java 21+, falls back to platform threads)
+    NIO                    // Selector/SSLEngine event loops shared by all connections
+}
@@ -0,0 +1,27 @@
+package Server;
+
+/**
+ * A connected client as seen by the {@link SessionRegistry}, whatever engine serves it.
+ */
+public interface Session {
+
+    String getUsername();
+
+    /**
+     * Remote address, e.g. /127.0.0.1:51234
+     */
+    String getAddress();
+
+    /**
+     * Whether the session is in a room (none until it has sent its username)
+     */
+    boolean isMember();
+
+    /**
+     * Queue an encoded frame, never blocks on the socket
+     * @return false if the client has been evicted
+     */
+    boolean send(byte[] frame);
+
+    OutboundQueue getOutbound();
+}
@@ -0,0 +1,84 @@
+package Server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connected sessions of a server, indexed by address and by username.
+ * <p>
+ * Joins and leaves are O(1) updates of concurrent maps and never wait for a broadcast. Broadcasts iterate
+ * an immutable snapshot array, rebuilt lazily by the first reader after a change, so fan-out takes no
+ * lock and is not disturbed by sessions coming and going while it runs.
+ */
+public class SessionRegistry<S extends Session> {
+    private final ConcurrentHashMap<String, S> byAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<S>> byUsername = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, new Session[0]);
+
+    public void add(S session) {
+        S previous = byAddress.put(session.getAddress(), session);
+        if (previous != null && previous != session) removeUsername(previous);
+        byUsername.computeIfAbsent(session.getUsername(), name -> ConcurrentHashMap.newKeySet()).add(session);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return whether the session was registered
+     */
+    public boolean remove(S session) {
+        if (!byAddress.remove(session.getAddress(), session)) return false;
+        removeUsername(session);
+        version.incrementAndGet();
+        return true;
+    }
+
+    private void removeUsername(S session) {
+        byUsername.computeIfPresent(session.getUsername(), (name, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    public S byAddress(String address) {
+        return byAddress.get(address);
+    }
+
+    /**
+     * All sessions of a user (chat and file transfer connections), empty if none
+     */
+    public Set<S> byUsername(String username) {
+        Set<S> sessions = byUsername.get(username);
+        return sessions == null ? Collections.<S>emptySet() : Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * The sessions at the time of the last change, safe to iterate while others join and leave
+     */
+    @SuppressWarnings("unchecked")
+    public List<S> snapshot() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version != latest) {
+            // rebuilt outside any lock; a change racing with this is caught by the version on the next read
+            current = new Snapshot(latest, byAddress.values().toArray(new Session[0]));
+            snapshot = current;
+        }
+        return (List<S>) current.view;
+    }
+
+    public int size() {
+        return byAddress.size();
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final List<Session> view;
+
+        Snapshot(long version, Session[] sessions) {
+            this.version = version;
+            this.view = Collections.unmodifiableList(Arrays.asList(sessions));
+        }
+    }
+}
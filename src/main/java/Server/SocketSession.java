@@ -0,0 +1,172 @@
+package Server;
+
+import Utils.Frame;
+
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client connection of the blocking {@link Server}: the socket plus one long-lived buffered output,
+ * so broadcasting doesn't build a new writer and encoder per recipient and message.
+ * {@link #send(byte[])} only queues; a writer task drains the session's {@link OutboundQueue}.
+ * File chunks bypass the queue through {@link #write(byte[], int, int)}; writes take turns on a fair lock
+ * so a download and the chat frames interleave.
+ */
+public class SocketSession implements Session {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final SSLSocket socket;
+    private volatile String username; // Guest until the client logs in on this connection
+    private final String address;
+    private final OutputStream out;
+    // a Lock rather than synchronized so virtual threads blocked in a write don't pin their carrier
+    private final Lock writeLock = new ReentrantLock(true);
+    private final OutboundQueue outbound;
+
+    /**
+     * @param writers runs the task draining the outbound queue
+     * @param highWaterMark frames queued before the overflow policy applies
+     */
+    public SocketSession(SSLSocket socket, String username, Executor writers, int highWaterMark, OutboundQueue.OverflowPolicy policy) throws IOException {
+        this.socket = socket;
+        this.username = username;
+        this.address = socket.getInetAddress() + ":" + socket.getPort();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.outbound = new OutboundQueue(username + "@" + address, highWaterMark, policy,
+                () -> writers.execute(this::drain), () -> writers.execute(this::closeQuietly));
+    }
+
+    /**
+     * A session writing to any stream, drained on the calling thread, for benchmarks and tests
+     */
+    public SocketSession(String username, String address, OutputStream out) {
+        this.socket = null;
+        this.username = username;
+        this.address = address;
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.outbound = new OutboundQueue(username + "@" + address, OutboundQueue.DEFAULT_HIGH_WATER_MARK,
+                OutboundQueue.OverflowPolicy.DISCONNECT, this::drain, this::closeQuietly);
+    }
+
+    /**
+     * Encode a chat message frame once, the result is shared by all recipients and must not be modified
+     */
+    public static byte[] encode(String from, String msg) {
+        return Frame.text(from + ": " + msg);
+    }
+
+    /**
+     * Queue an encoded frame for the client, never blocks on the socket
+     * @return false if the client has been evicted for falling behind
+     */
+    @Override
+    public boolean send(byte[] frame) {
+        return outbound.offer(frame);
+    }
+
+    /**
+     * Queue a control frame (Verified, RegSucc, ...)
+     */
+    public void sendControl(String command) {
+        send(Frame.control(command));
+    }
+
+    /**
+     * Write queued frames until the queue is empty, flushing once it is
+     */
+    private void drain() {
+        writeLock.lock();
+        try {
+            byte[] frame;
+            while ((frame = outbound.poll()) != null) {
+                out.write(frame);
+                if (outbound.depth() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to send to " + address + ": " + e.getMessage());
+            closeQuietly(); // the session's reader sees the closed socket and cleans up
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write a frame straight to the socket, behind whatever the writer is sending; for file transfer
+     * frames, which are paced by the client's acks rather than the outbound queue
+     */
+    public void write(byte[] frame, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            out.write(frame, offset, length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write several frames from heap buffers straight to the socket in one turn, flushing once
+     */
+    public void write(ByteBuffer[] frames, int count) throws IOException {
+        writeLock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer frame = frames[i];
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public SSLSocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Only through {@link Server#rename}, the sessions are indexed by username
+     */
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isMember() {
+        return true;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void close() throws IOException {
+        if (socket == null) {
+            out.close();
+        } else {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package Server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts server threads either as platform threads or as virtual threads.
+ * Virtual threads are looked up reflectively so the project still builds for Java 8;
+ * on a JVM without them (before 21, or 19/20 without --enable-preview) platform threads are used.
+ */
+final class Threads {
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {}); // fails here if still a preview feature
+        } catch (Exception | LinkageError e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private Threads() {
+    }
+
+    static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Start a task on a new thread
+     * @param virtual whether to use a virtual thread when the JVM has them
+     */
+    static Thread start(Runnable task, boolean virtual) {
+        Thread thread = virtual ? newVirtualThread(task) : null;
+        if (thread == null) thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static Thread newVirtualThread(Runnable task) {
+        if (OF_VIRTUAL == null) return null;
+        try {
+            return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package Server;
+
+import Utils.Tls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking TLS over a SocketChannel, driven by an event loop.
+ * Decrypted bytes are collected in {@link #appIn()}, outgoing bytes are encrypted by {@link #write(ByteBuffer)}
+ * into a buffer holding several records, which goes to the channel when it fills up or on {@link #flush()}.
+ * Not thread-safe: only the owning event loop may touch it.
+ */
+class TlsConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int OUT_RECORDS = 4; // encrypted records collected per channel write
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;  // encrypted bytes read from the channel (write mode)
+    private ByteBuffer appIn;  // decrypted bytes for the session (write mode)
+    private ByteBuffer netOut; // encrypted bytes waiting for the channel (write mode)
+    private final long startMillis;
+    private boolean handshaken; // counted in the server's handshakes
+
+    TlsConnection(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int appSize = engine.getSession().getApplicationBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(appSize);
+        netOut = ByteBuffer.allocate(OUT_RECORDS * packetSize);
+        startMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    ByteBuffer appIn() {
+        return appIn;
+    }
+
+    boolean isHandshaking() {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Read what the channel has and decrypt it into appIn
+     * @throws EOFException if the peer closed the connection
+     */
+    void read() throws IOException {
+        int n = channel.read(netIn);
+        if (n < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) {
+                // peer did not send close_notify
+            }
+            throw new EOFException();
+        }
+        unwrap();
+    }
+
+    private void unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW: // session wants a bigger plaintext buffer
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW: // need more bytes for a whole record
+                    if (netIn.capacity() < engine.getSession().getPacketBufferSize()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return;
+                case CLOSED:
+                    throw new EOFException();
+                default:
+                    break;
+            }
+
+            boolean progressed = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            HandshakeStatus before = engine.getHandshakeStatus();
+            if (!handshake()) return;
+            // keep unwrapping only while the engine or the handshake moves forward
+            if (!progressed && before != HandshakeStatus.NEED_TASK && before != HandshakeStatus.NEED_WRAP) return;
+        }
+    }
+
+    /**
+     * Run the handshake steps that don't need input from the peer
+     * @return false if the handshake is waiting for the channel to become writable
+     */
+    boolean handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) task.run();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if (!flush()) return false;
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException();
+                    if (!flush()) return false;
+                    break;
+                default: // NEED_UNWRAP waits for read(), otherwise done
+                    if (!handshaken && !isHandshaking()) {
+                        handshaken = true;
+                        Tls.SERVER_HANDSHAKES.completed(engine.getSession(), startMillis);
+                    }
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Encrypt as much of src as there is room for, writing to the channel only when the buffer is full
+     * @return true if all of src has been encrypted, the records may still wait for {@link #flush()}
+     */
+    boolean write(ByteBuffer src) throws IOException {
+        if (isHandshaking()) return false;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        while (src.hasRemaining()) {
+            if (netOut.remaining() < packetSize) {
+                flush();
+                if (netOut.remaining() < packetSize) return false; // the channel is full
+            }
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException();
+        }
+        return true;
+    }
+
+    /**
+     * Write pending encrypted bytes to the channel
+     * @return true if nothing is left pending
+     */
+    boolean flush() throws IOException {
+        if (netOut.position() == 0) return true;
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    void close() {
+        try {
+            engine.closeOutbound();
+            handshake(); // best effort close_notify
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
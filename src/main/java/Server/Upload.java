@@ -0,0 +1,258 @@
+package Server;
+
+import Utils.Digests;
+import Utils.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntFunction;
+
+/**
+ * A file a client is sending on one stream of its session, written to the staging directory, which is on
+ * the same volume as the attachments so saving it is a rename instead of a second copy.
+ * The staging file is named by the server after the user and the client's transfer id, never after the client's
+ * name for the file, so an upload cut off by a dropped connection resumes from what was received when the client
+ * sends it again, from this or a new session.
+ * The contents are hashed as they arrive; the client sends its own digest first, so an upload of something
+ * the user already stored is skipped and the attachment refers to the stored blob.
+ * Used by both engines; the receiving side acks every half {@link Frame#WINDOW} to keep the client sending.
+ */
+class Upload {
+    static final long DEFAULT_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+    static final long SWEEP_INTERVAL_MILLIS = 60 * 60 * 1000L;
+    private static final ConcurrentMap<File, Upload> active = new ConcurrentHashMap<>(); // by staging file, across sessions
+
+    private final int stream;
+    private final boolean isVoice;
+    private final String baseName;
+    private final String fileName;
+    private final long length;
+    private final File file;
+    private final FileChannel channel;
+    private final String claimedDigest; // the client's, trusted only to skip the upload
+    private final MessageDigest digest = Digests.sha256();
+    private boolean skipped;
+    private long received;
+    private long acked;
+
+    /**
+     * Start or resume an upload from "upload &lt;stream&gt; file|voice &lt;length&gt; &lt;transfer&gt; &lt;digest&gt; &lt;name&gt;"
+     * @param directory the staging directory, where uploads are kept until they are saved
+     */
+    Upload(String command, String username, String directory) throws IOException {
+        String[] parts = command.split(" ", 7);
+        if (parts.length < 7) throw new IOException("Bad upload command: " + command);
+        try {
+            this.stream = Integer.parseInt(parts[1]);
+            this.length = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad upload command: " + command);
+        }
+        this.isVoice = "voice".equals(parts[2]);
+        String transfer = parts[4];
+        this.claimedDigest = parts[5];
+        this.baseName = parts[6];
+        if (stream == 0 || length < 0 || !transfer.matches("[0-9A-Za-z]{1,64}") || !Digests.isSha256(claimedDigest)
+                || !isPlainName(baseName) || !isPlainName(username)) {
+            throw new IOException("Bad upload command: " + command);
+        }
+        this.fileName = stagingName(username, transfer);
+
+        File dir = new File(directory);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.file = new File(dir.getAbsolutePath() + File.separatorChar + fileName);
+        if (!file.toPath().normalize().startsWith(dir.getAbsoluteFile().toPath().normalize())) {
+            throw new IOException("Bad upload command: " + command); // cannot happen with a generated name, checked anyway
+        }
+        Upload previous = active.put(file, this);
+        if (previous != null) previous.suspend(); // the client reconnected before its old session timed out
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > length) channel.truncate(0); // not the same file after all
+            hashReceived();
+        } catch (IOException e) {
+            suspend();
+            throw e;
+        }
+        this.acked = received;
+    }
+
+    /**
+     * Name of the staging file of a user's transfer, from the hash of the username and the transfer id only
+     */
+    static String stagingName(String username, String transfer) {
+        return Digests.hex(Digests.sha256().digest(username.getBytes(StandardCharsets.UTF_8))) + "-" + transfer;
+    }
+
+    /**
+     * A name that stays a single file name inside a directory: no path separators, no "..", no control characters
+     */
+    static boolean isPlainName(String name) {
+        if (name.isEmpty() || name.contains("..")) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || Character.isISOControl(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hash what an interrupted upload has already stored, leaving the channel at its end
+     */
+    private void hashReceived() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long size = channel.size();
+        channel.position(0);
+        while (received < size) {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) break;
+            buffer.flip();
+            digest.update(buffer);
+            received += count;
+        }
+    }
+
+    int stream() {
+        return stream;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * The digest the client announced
+     */
+    String claimedDigest() {
+        return claimedDigest;
+    }
+
+    /**
+     * The server already stores these contents: take nothing from the client and refer to the stored blob
+     */
+    void skip() {
+        skipped = true;
+        received = length;
+        suspend();
+        file.delete(); // the generated staging file of this upload, nothing the client named
+    }
+
+    /**
+     * The reply telling the client where to continue: "resume &lt;stream&gt; &lt;offset&gt;", the whole length if skipped
+     */
+    String resumeReply() {
+        return "resume " + stream + " " + received;
+    }
+
+    /**
+     * Write the payload of a chunk frame
+     * @return the offset to ack, -1 if no ack is due
+     */
+    long write(ByteBuffer chunk) throws IOException {
+        if (received + chunk.remaining() > length) throw new IOException("Upload of " + baseName + " longer than announced");
+        received += chunk.remaining();
+        digest.update(chunk.duplicate());
+        while (chunk.hasRemaining()) channel.write(chunk);
+        if (!Frame.ackDue(received, acked, length)) return -1;
+        acked = received;
+        return received;
+    }
+
+    boolean isComplete() {
+        return received == length;
+    }
+
+    /**
+     * Close the complete file, save it and announce it in the uploader's room; the caller then acks the whole length
+     * @return false if the upload was skipped but the stored contents were deleted since, the client has to send them
+     */
+    boolean finish(ChatServer server, Room room, String username) throws IOException {
+        channel.close();
+        active.remove(file, this);
+        String contents = claimedDigest;
+        if (!skipped) {
+            contents = Digests.hex(digest.digest());
+            if (!contents.equals(claimedDigest)) System.err.println("Upload of " + baseName + " does not match the digest " + claimedDigest + " sent by " + username);
+        }
+        try {
+            if (!announce(server, room, username, fileName, contents, baseName, length, isVoice)) {
+                Files.deleteIfExists(file.toPath()); // not saved, nothing refers to it
+            }
+        } catch (NoSuchFileException e) {
+            System.err.println("Upload of " + baseName + " by " + username + " skipped, but " + e.getReason());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop writing an incomplete upload, e.g. when the client disconnects; the staging file is kept for a resume
+     */
+    void suspend() {
+        active.remove(file, this);
+        try {
+            if (channel != null) channel.close(); // null if opening it failed
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Save an uploaded file together with the message announcing it, cache it if it is small, then send the announcement
+     * @param fileName name of the file in the staging directory
+     * @param contents digest of the file, naming the blob it is stored as
+     * @return false if the file was not saved
+     */
+    private static boolean announce(ChatServer server, Room room, String username, String fileName, String contents, String fileBaseName,
+                                long fileLength, boolean isVoice) throws IOException {
+        IntFunction<String> message = isVoice
+                ? id -> "Sent a voice message: [Size: " + MsgTask.getFormatFileSize(fileLength) + "] [ID: " + id + "]"
+                : id -> "File sent: [File Name: " + fileBaseName + "] [Size: " + MsgTask.getFormatFileSize(fileLength) + "] [ID: " + id + "]";
+        DatabaseConnection database = server.getDatabase();
+        DatabaseConnection.SavedUpload saved = database.saveUpload(fileName, fileBaseName, contents, isVoice ? "Voice" : "File", room.id(), username, message);
+        if (saved == null) {
+            room.broadcast(username, message.apply(-1)); // announce it anyway, the message is saved on its own
+            return false;
+        }
+        database.getBlobCache().load(database.getFile(saved.attachmentId())); // the room downloads it as soon as it is announced
+        room.deliver(username, message.apply(saved.attachmentId()), saved.messageId());
+        return true;
+    }
+
+    /**
+     * Delete the staging files of uploads that were not resumed in time, e.g. the client gave up or
+     * the server was stopped mid-transfer. Run at startup and then periodically.
+     * @param retentionMillis how long an untouched upload can still be resumed
+     */
+    static void cleanStaging(String directory, long retentionMillis) {
+        File[] orphans = new File(directory).listFiles(File::isFile);
+        if (orphans == null) return;
+        long expired = System.currentTimeMillis() - retentionMillis;
+        int deleted = 0;
+        for (File orphan : orphans) {
+            if (active.containsKey(orphan.getAbsoluteFile()) || orphan.lastModified() > expired) continue;
+            if (orphan.delete()) deleted++;
+        }
+        if (deleted > 0) System.out.println("Deleted " + deleted + " unfinished uploads from " + directory);
+    }
+
+    /**
+     * Read server.staging.retention from the configuration
+     */
+    static long retention(Properties properties) {
+        String value = properties.getProperty("server.staging.retention");
+        return value == null ? DEFAULT_RETENTION_MILLIS : Long.parseLong(value.trim());
+    }
+}
@@ -0,0 +1,52 @@
+package Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests naming attachment contents, shared by the client (sent before an upload)
+ * and the server (computed while the upload arrives).
+ */
+public final class Digests {
+    public static final int HEX_LENGTH = 64;
+
+    private Digests() {
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // every JVM has it
+        }
+    }
+
+    /**
+     * Digest of a whole file, as lowercase hex
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) digest.update(buffer, 0, count);
+        }
+        return hex(digest.digest());
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static boolean isSha256(String hex) {
+        return hex.length() == HEX_LENGTH && hex.matches("[0-9a-f]+");
+    }
+}
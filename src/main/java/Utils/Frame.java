@@ -0,0 +1,270 @@
+package Utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The wire protocol between client and server: a versioned stream of length-prefixed frames.
+ * <p>
+ * A connection starts with negotiation: the client sends {@link #MAGIC} and the highest version it speaks,
+ * the server answers with {@link #MAGIC} and the version both will use, 0 if there is none.
+ * After that both sides only exchange frames:
+ * <pre>
+ *   type    1 byte   {@link Type}
+ *   stream  4 bytes  0 for the chat, a transfer's id for its file chunks and acks
+ *   length  4 bytes  payload length, at most {@link #MAX_PAYLOAD}
+ *   payload length bytes, UTF-8 for TEXT and CONTROL
+ * </pre>
+ * The first CONTROL frame from the client is {@code hello <username>}, answered with {@code room <name>}.
+ * Commands that used to be text lines ({@code Login}, {@code Register}, {@code exit}) are CONTROL frames with the same words.
+ * <p>
+ * File transfers are streams multiplexed over the same connection, numbered by the client:
+ * {@code upload <stream> file|voice <length> <transfer> <digest> <name>} is answered with {@code resume <stream> <offset>},
+ * then the client sends FILE_CHUNK frames on that stream from that offset, none if the server already stores
+ * contents with that SHA-256 digest;
+ * {@code download <stream> <id> <offset>} is answered with {@code download <stream> <length> <offset> <name>}
+ * and the chunks from that offset, or {@code nofile <stream> <id>}. The receiver of the chunks acks its offset
+ * every half {@link #WINDOW} and the sender stays within a window of the last ack, so one large transfer
+ * cannot crowd out the chat. The ack of an upload's whole length means the server has stored and announced the file.
+ * <p>
+ * Transfers resume after a dropped connection: the client names each upload with a transfer id that stays the
+ * same for the same file, and the server keeps what it received under that id; a download asks for the bytes
+ * after what it already has. Offsets in acks are always from the start of the file.
+ * <p>
+ * History is read a page at a time, newest first: {@code history <stream> <before> <count>} asks for the count
+ * messages saved before the message with id {@code before}, the latest ones for 0. They come as TEXT frames on that
+ * stream, oldest first, followed by {@code history <stream> <count> <before>} naming where the page before starts,
+ * 0 if there is none.
+ * <p>
+ * {@code search <stream> <offset> <count> <query>} asks for the count messages containing every word of the query,
+ * from the offset-th best match on. They come as TEXT frames on that stream, best first, followed by
+ * {@code search <stream> <count> <total>} with the number of matches in all.
+ * <p>
+ * A connection starts in the server's lobby, named by the first {@code room <name>} after the hello.
+ * {@code join <room>} moves it to that room, creating it if there is none, and {@code leave} back to the lobby;
+ * both are answered with {@code room <name>}, after which chat messages, history and search are the new room's,
+ * or {@code noroom <room>} if the name is not valid.
+ * <p>
+ * {@code Login <user> <password>} is answered with {@code token <token>} and {@code Verified}, or {@code NotVerified};
+ * {@code Resume <token>} logs in again with that token until it expires, without the password, and is answered the
+ * same way with a fresh token. On a connection that said {@code hello Guest} and then logged in either way,
+ * {@code upgrade} makes it that user's chat session, answered with {@code room <name>} as after a hello, so the
+ * client logs in and chats on one connection. A server too busy checking passwords answers a login or registration with
+ * {@code Busy} before {@code NotVerified} or {@code RegFail}.
+ */
+public final class Frame {
+    public static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+    public static final int VERSION = 8;
+    public static final int MIN_VERSION = 3; // version 3 has no history requests, version 2 uploads had no digest
+    public static final int HISTORY_VERSION = 4;
+    public static final int SEARCH_VERSION = 5;
+    public static final int ROOMS_VERSION = 6;
+    public static final int AUTH_VERSION = 7;
+    public static final int UPGRADE_VERSION = 8;
+    public static final int HEADER_SIZE = 9;
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+    public static final int CHUNK_SIZE = 16 * 1024 - HEADER_SIZE; // a chunk frame fills one TLS record
+    public static final int WINDOW = 256 * 1024; // bytes of one transfer the sender may have in flight, unacked
+
+    public enum Type {
+        TEXT(1),       // chat message, or one of a history page or search result on its stream
+        CONTROL(2),    // command or reply
+        FILE_CHUNK(3), // piece of a file transfer
+        ACK(4),        // bytes of a transfer received so far, 8-byte payload
+        HEARTBEAT(5);  // keeps an idle connection alive, empty payload
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        static Type of(byte code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) return type;
+            }
+            throw new IOException("Unknown frame type " + code);
+        }
+    }
+
+    private final Type type;
+    private final int stream;
+    private final ByteBuffer payload;
+
+    private Frame(Type type, int stream, ByteBuffer payload) {
+        this.type = type;
+        this.stream = stream;
+        this.payload = payload;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public int stream() {
+        return stream;
+    }
+
+    /**
+     * The payload; frames decoded from a buffer share it and are only valid until the buffer is reused
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    public String text() {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    /**
+     * The offset carried by an ACK frame
+     */
+    public long offset() {
+        return payload.getLong(payload.position());
+    }
+
+    public static byte[] encode(Type type, int stream, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD) throw new IllegalArgumentException("Frame payload too large: " + length);
+        byte[] frame = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(frame).put(type.code).putInt(stream).putInt(length).put(payload, offset, length);
+        return frame;
+    }
+
+    public static byte[] text(String text) {
+        return text(0, text);
+    }
+
+    /**
+     * A message on a stream other than the chat, e.g. a page of history
+     */
+    public static byte[] text(int stream, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return encode(Type.TEXT, stream, bytes, 0, bytes.length);
+    }
+
+    public static byte[] control(String command) {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        return encode(Type.CONTROL, 0, bytes, 0, bytes.length);
+    }
+
+    public static byte[] heartbeat() {
+        return encode(Type.HEARTBEAT, 0, new byte[0], 0, 0);
+    }
+
+    public static byte[] ack(int stream, long offset) {
+        byte[] bytes = ByteBuffer.allocate(8).putLong(offset).array();
+        return encode(Type.ACK, stream, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Flow control on the receiving side of a transfer: whether to ack now, opening the sender's window.
+     * The end of an upload is acked only once the file is stored, so the last bytes never are here.
+     */
+    public static boolean ackDue(long received, long acked, long length) {
+        return received < length && received - acked >= WINDOW / 2;
+    }
+
+    /**
+     * Write a frame header, the payload follows separately (e.g. straight from a file)
+     */
+    public static void writeHeader(ByteBuffer out, Type type, int stream, int length) {
+        out.put(type.code).putInt(stream).putInt(length);
+    }
+
+    /**
+     * Read the next frame from a blocking stream
+     * @return null at the end of the stream
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int first = in.read(header);
+        if (first < 0) return null;
+        in.readFully(header, first, HEADER_SIZE - first);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        Type type = Type.of(fields.get());
+        int stream = fields.getInt();
+        int length = checkLength(fields.getInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, stream, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decode the next frame from a buffer in read mode, without copying the payload
+     * @return null if the buffer does not hold a whole frame yet, nothing is consumed then
+     */
+    public static Frame decode(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE) return null;
+        int start = in.position();
+        Type type = Type.of(in.get(start));
+        int stream = in.getInt(start + 1);
+        int length = checkLength(in.getInt(start + 5));
+        if (in.remaining() < HEADER_SIZE + length) return null;
+        ByteBuffer payload = in.duplicate();
+        payload.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        in.position(start + HEADER_SIZE + length);
+        return new Frame(type, stream, payload.slice());
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Bad frame length " + length);
+        return length;
+    }
+
+    /**
+     * Client side of the negotiation
+     * @return the version the server agreed on
+     * @throws IOException if the server does not speak a version we know
+     */
+    public static int negotiate(InputStream in, OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.flush();
+        byte[] reply = new byte[MAGIC.length + 1];
+        new DataInputStream(in).readFully(reply);
+        int version = reply[MAGIC.length];
+        if (!Arrays.equals(Arrays.copyOf(reply, MAGIC.length), MAGIC) || version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Server does not support protocol version " + VERSION);
+        }
+        return version;
+    }
+
+    /**
+     * Server side of the negotiation, from a blocking stream
+     * @return the agreed version, 0 if the client is not speaking this protocol (the reply says so)
+     */
+    public static int accept(InputStream in, OutputStream out) throws IOException {
+        byte[] hello = new byte[MAGIC.length + 1];
+        new DataInputStream(in).readFully(hello);
+        int version = agree(ByteBuffer.wrap(hello));
+        out.write(agreement(version));
+        out.flush();
+        return version;
+    }
+
+    /**
+     * Check the client's negotiation bytes ({@link #MAGIC} and its version)
+     * @return the version to answer with, 0 if the client is not speaking this protocol
+     */
+    public static int agree(ByteBuffer hello) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (hello.get(hello.position() + i) != MAGIC[i]) return 0;
+        }
+        int version = hello.get(hello.position() + MAGIC.length);
+        return version < MIN_VERSION ? 0 : Math.min(version, VERSION);
+    }
+
+    /**
+     * The server's answer to a negotiation
+     */
+    public static byte[] agreement(int version) {
+        byte[] reply = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        reply[MAGIC.length] = (byte) version;
+        return reply;
+    }
+}
@@ -0,0 +1,135 @@
+package Utils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TLS contexts of the process, each loaded once: the client's from client.truststore, the server's from
+ * server.keystore. Connections made with the same context share its session cache, so a reconnect or a second
+ * connection to the same server resumes the session with an abbreviated handshake, skipping the certificate
+ * exchange and checks. {@link #CLIENT_HANDSHAKES} and {@link #SERVER_HANDSHAKES} count how many were resumed.
+ */
+public final class Tls {
+    public static final int DEFAULT_SESSION_CACHE = 10_000;
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60; // seconds
+    private static final String TRUSTSTORE = "client.truststore";
+    private static final String KEYSTORE = "server.keystore";
+    private static final char[] PASSWORD = "123456".toCharArray();
+
+    public static final Handshakes CLIENT_HANDSHAKES = new Handshakes();
+    public static final Handshakes SERVER_HANDSHAKES = new Handshakes();
+
+    private static SSLContext client;
+    private static SSLContext server;
+
+    private Tls() {
+    }
+
+    /**
+     * The client context, trusting the certificates in client.truststore
+     */
+    public static synchronized SSLContext client() throws IOException {
+        if (client == null) {
+            try (InputStream in = new FileInputStream(TRUSTSTORE)) {
+                KeyStore trustStore = KeyStore.getInstance("JKS");
+                trustStore.load(in, PASSWORD);
+                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+                trustManagerFactory.init(trustStore);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, trustManagerFactory.getTrustManagers(), null);
+                configure(context.getClientSessionContext());
+                client = context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load " + TRUSTSTORE, e);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * The server context, with the key in server.keystore
+     */
+    public static synchronized SSLContext server() throws IOException {
+        if (server == null) {
+            try (InputStream in = new FileInputStream(KEYSTORE)) {
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                keyStore.load(in, PASSWORD);
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+                keyManagerFactory.init(keyStore, PASSWORD);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagerFactory.getKeyManagers(), null, null);
+                configure(context.getServerSessionContext());
+                server = context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load " + KEYSTORE, e);
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Size and lifetime of the session cache from tls.session.cache and tls.session.timeout
+     */
+    private static void configure(SSLSessionContext sessions) {
+        Properties properties = ResourceLoader.loadProperties();
+        if (properties == null) properties = new Properties();
+        sessions.setSessionCacheSize(Integer.parseInt(properties.getProperty("tls.session.cache", String.valueOf(DEFAULT_SESSION_CACHE)).trim()));
+        sessions.setSessionTimeout(Integer.parseInt(properties.getProperty("tls.session.timeout", String.valueOf(DEFAULT_SESSION_TIMEOUT)).trim()));
+    }
+
+    /**
+     * Connect to a server with the client context; the handshake is counted once it is done
+     */
+    public static SSLSocket connect(String host, int port) throws IOException {
+        SSLContext context = client();
+        long start = System.currentTimeMillis();
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        socket.addHandshakeCompletedListener(event -> CLIENT_HANDSHAKES.completed(event.getSession(), start));
+        return socket;
+    }
+
+    /**
+     * Handshakes of one side, full and resumed
+     */
+    public static final class Handshakes {
+        private final AtomicLong full = new AtomicLong();
+        private final AtomicLong resumed = new AtomicLong();
+
+        /**
+         * A handshake is done on a connection started at startMillis. A resumed session keeps the creation
+         * time of the session it resumes, so it is older than the connection.
+         */
+        public void completed(SSLSession session, long startMillis) {
+            if (session.getCreationTime() < startMillis) resumed.incrementAndGet();
+            else full.incrementAndGet();
+        }
+
+        public long fullCount() {
+            return full.get();
+        }
+
+        public long resumedCount() {
+            return resumed.get();
+        }
+
+        /**
+         * Share of the handshakes that were resumed, 0 if there were none
+         */
+        public double resumedRatio() {
+            long resumedCount = resumed.get();
+            long all = full.get() + resumedCount;
+            return all == 0 ? 0 : (double) resumedCount / all;
+        }
+    }
+}
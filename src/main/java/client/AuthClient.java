@@ -1,25 +1,27 @@
 package client;
 
-import javax.net.ssl.SSLContext;
+import Utils.Frame;
+import Utils.Tls;
+
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 
 public class AuthClient {
     private QQLoginUI UI;
     private int verify;
     private SSLSocket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private DataInputStream in;
+    private DataOutputStream out;
     private final String ip;
     private final int port;
     private boolean running = true;
-    SSLSocketFactory socketFactory;
+    private boolean busy;  // the server turned the request away, not the password
+    private String token;  // from the last login, logs in again without the password
+    private int version;   // of the protocol, agreed with the server
+    private boolean keep;  // stop reading once verified, a Client takes the connection over
+    private boolean handedOver;
+    private Thread reader;
 
 
     public AuthClient(String ip, int port, QQLoginUI UI) {
@@ -29,18 +31,8 @@ public class AuthClient {
         this.verify = -1; // -1 default or timeout
     }
 
-    public void init() throws Exception{
-        KeyStore trustStore = KeyStore.getInstance("JKS");
-        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
-
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-        trustManagerFactory.init(trustStore);
-
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
-
-        socketFactory = sslContext.getSocketFactory();
-        socket = (SSLSocket) socketFactory.createSocket(ip, port);
+    public void init() throws IOException {
+        socket = Tls.connect(ip, port); // the process's client context, its sessions are resumed
     }
 
     public void connect() throws IOException {
@@ -53,22 +45,31 @@ public class AuthClient {
         if (!socket.getKeepAlive()) socket.setKeepAlive(true);
 //        if (!socket.getOOBInline()) socket.setOOBInline(true);
 
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "GBK"));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "GBK"));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        version = Frame.negotiate(in, out);
 
-        speak("Guest");
+        speak("hello Guest");
 
-        new Thread(() -> {
+        reader = new Thread(() -> {
+            boolean stopped = false;
             try {
                 while (running) {
-                    String str = in.readLine();
-                    if (str == null) break;
+                    Frame frame = Frame.read(in);
+                    if (frame == null) break;
+                    if (frame.type() != Frame.Type.CONTROL) continue;
+                    String str = frame.text();
 
                     synchronized (this) {
+                        if (str.startsWith("token ")) token = str.substring(6);
                         switch (str) {
+                            case "Busy":
+                                busy = true;
+                                UI.showDialog("The server is busy, please try again in a moment.");
+                                break;
                             case "NotVerified":
                                 verify = 0;
-                                UI.showDialog("Please check your username and password.");
+                                if (!busy) UI.showDialog("Please check your username and password.");
                                 break;
                             case "Verified":
                                 verify = 1;
@@ -79,7 +80,7 @@ public class AuthClient {
                                 break;
                             case "RegFail":
                                 verify = -3;
-                                UI.showDialog("Registration failed!");
+                                if (!busy) UI.showDialog("Registration failed!");
                                 break;
                             case "RegSucc":
                                 verify = 3;
@@ -88,19 +89,29 @@ public class AuthClient {
                         }
                         // Notify the main thread that a server response has been received
                         this.notifyAll();
+                        if (keep && verify == 1) {
+                            stopped = true; // what follows on the connection is the chat's
+                            break;
+                        }
                     }
                 }
             } catch (IOException e) {
                 if (!(e instanceof SocketException)) e.printStackTrace();
             } finally {
-                closeResources();
+                if (!stopped) closeResources();
             }
-        }).start();
+        });
+        reader.start();
     }
 
-    public void speak(String str) {
-        out.write(str + "\r\n");
-        out.flush();
+    /**
+     * Send a command (Login, Register, exit) as a control frame
+     */
+    public void speak(String str) throws IOException {
+        synchronized (out) {
+            out.write(Frame.control(str));
+            out.flush();
+        }
     }
 
     public void disconnect() {
@@ -133,6 +144,74 @@ public class AuthClient {
         return verify;
     }
 
+    /**
+     * Log in and keep the connection for the chat: once verified, a {@link Client} takes it over with "upgrade"
+     * instead of a second connection and TLS handshake. A server before {@link Frame#UPGRADE_VERSION} cannot
+     * upgrade, the connection is closed then as by {@link #GuestSpeakAndVerify}.
+     * @return 1 if verified, else as GuestSpeakAndVerify
+     */
+    public int login(String username, String password) {
+        try {
+            connect();
+            synchronized (this) {
+                keep = version >= Frame.UPGRADE_VERSION;
+            }
+            speak("Login " + username + " " + password);
+            synchronized (this) {
+                while (verify == -1) this.wait();
+            }
+            if (verify == 1 && keep) {
+                reader.join(); // stopped reading at Verified
+                synchronized (this) {
+                    handedOver = true;
+                }
+                return verify;
+            }
+            disconnect();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return verify;
+    }
+
+    /**
+     * Whether {@link #login} kept the connection for a Client to take over
+     */
+    synchronized boolean isHandedOver() {
+        return handedOver;
+    }
+
+    SSLSocket socket() {
+        return socket;
+    }
+
+    DataInputStream input() {
+        return in;
+    }
+
+    DataOutputStream output() {
+        return out;
+    }
+
+    synchronized int version() {
+        return version;
+    }
+
+    String ip() {
+        return ip;
+    }
+
+    int port() {
+        return port;
+    }
+
+    /**
+     * The session token the server gave with Verified, null if it gave none
+     */
+    public synchronized String getToken() {
+        return token;
+    }
+
     private void closeResources() {
         try {
             if (in != null) in.close();
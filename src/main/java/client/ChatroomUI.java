@@ -11,8 +11,10 @@ import java.util.Date;
 import javax.sound.sampled.*;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,11 +22,14 @@ import static Utils.ResourceLoader.loadProperties;
 
 public class ChatroomUI extends JFrame {
     private final JTextPane chatPane;
+    private final JScrollPane scrollPane;
     private final JTextArea messageArea;
     private JButton sendButton;
     private JButton fileButton;
     private JButton voiceButton;
+    private JButton searchButton;
     private JButton leaveButton;
+    private JButton roomButton;
     private JLabel chatroomNameLabel;
     private final StyledDocument chatDocument;
     private final SimpleDateFormat timestampFormat;
@@ -35,6 +40,8 @@ public class ChatroomUI extends JFrame {
     private static String AUDIO_PATH;
     private static final String PCM = "audio.pcm";
     private static final String WAV = "audio.wav";
+    private static final int HISTORY_PAGE = 50; // older messages loaded each time the chat is scrolled to the top
+    private static final int SEARCH_PAGE = 20; // search results shown at once
 
     // Map to store file download links
     private final Map<Integer, String> fileDownloadLinks = new HashMap<>();
@@ -42,7 +49,29 @@ public class ChatroomUI extends JFrame {
 
 
     public ChatroomUI(String username, String ip, int port) throws Exception {
-        this.client = new Client(username, ip, port, this);
+        this(username, ip, port, null);
+    }
+
+    /**
+     * @param token the session token from logging in, null if the server gave none
+     */
+    public ChatroomUI(String username, String ip, int port, String token) throws Exception {
+        this(username, ui -> new Client(username, ip, port, token, ui));
+    }
+
+    /**
+     * Chat on the connection the user logged in on
+     */
+    public ChatroomUI(String username, AuthClient login) throws Exception {
+        this(username, ui -> new Client(username, login, ui));
+    }
+
+    private interface Connector {
+        Client connect(ChatroomUI ui) throws Exception;
+    }
+
+    private ChatroomUI(String username, Connector connector) throws Exception {
+        this.client = connector.connect(this);
 
         Properties properties = loadProperties();
         AUDIO_PATH = properties.getProperty("client.audio");
@@ -68,7 +97,9 @@ public class ChatroomUI extends JFrame {
         leaveButton = new JButton("Leave");
         leaveButton.setBackground(new Color(255, 100, 100));
         leaveButton.setForeground(Color.WHITE);
+        roomButton = new JButton("Rooms");
 
+        topPanel.add(roomButton, BorderLayout.WEST);
         topPanel.add(chatroomNameLabel, BorderLayout.CENTER);
         topPanel.add(leaveButton, BorderLayout.EAST);
         mainPanel.add(topPanel, BorderLayout.NORTH);
@@ -78,8 +109,14 @@ public class ChatroomUI extends JFrame {
         chatPane.setEditable(false);
         chatPane.setBackground(Color.WHITE);
         chatDocument = chatPane.getStyledDocument();
-        JScrollPane scrollPane = new JScrollPane(chatPane);
+        scrollPane = new JScrollPane(chatPane);
         mainPanel.add(scrollPane, BorderLayout.CENTER);
+        // load older messages when the chat is scrolled to the top
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && scrollPane.getVerticalScrollBar().getMaximum() > scrollPane.getVerticalScrollBar().getVisibleAmount()) {
+                client.loadOlderMessages(HISTORY_PAGE);
+            }
+        });
 
         // Bottom panel: Message input and buttons
         JPanel bottomPanel = new JPanel(new BorderLayout(5, 5));
@@ -94,18 +131,22 @@ public class ChatroomUI extends JFrame {
         sendButton = new JButton("Send");
         fileButton = new JButton("📁");
         voiceButton = new JButton("🎤");
+        searchButton = new JButton("🔍");
 
         // Style settings
         sendButton.setBackground(new Color(100, 200, 100));
         sendButton.setForeground(Color.WHITE);
         fileButton.setBackground(Color.LIGHT_GRAY);
         voiceButton.setBackground(Color.LIGHT_GRAY);
+        searchButton.setBackground(Color.LIGHT_GRAY);
 
         // Button event listeners
         sendButton.addActionListener(e -> sendMessage());
         fileButton.addActionListener(e -> selectAndSendFile());
         voiceButton.addActionListener(e -> recordAndSendVoice());
+        searchButton.addActionListener(e -> searchMessages());
         leaveButton.addActionListener(e -> leaveChatroom());
+        roomButton.addActionListener(e -> switchRoom());
 
         // Add key binding for sending message with Ctrl+Enter
         messageArea.getInputMap().put(
@@ -123,6 +164,7 @@ public class ChatroomUI extends JFrame {
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         buttonPanel.add(fileButton);
         buttonPanel.add(voiceButton);
+        buttonPanel.add(searchButton);
 
         bottomPanel.add(messageScrollPane, BorderLayout.CENTER);
         bottomPanel.add(sendButton, BorderLayout.EAST);
@@ -161,6 +203,8 @@ public class ChatroomUI extends JFrame {
                 }
             }
         });
+
+        client.loadOlderMessages(HISTORY_PAGE); // the latest messages, the chat starts out empty
     }
 
     private void sendMessage() {
@@ -173,6 +217,52 @@ public class ChatroomUI extends JFrame {
 
     public void showMsg(String msg){
         //TODO: Update the chat display with the received message
+        String timestamp = timestampFormat.format(new Date());
+        SwingUtilities.invokeLater(() -> { // on the same thread as history, which inserts above
+            insertMsg(chatDocument.getLength(), msg, timestamp);
+
+            // Automatically scroll to the bottom
+            chatPane.setCaretPosition(chatDocument.getLength());
+        });
+    }
+
+    /**
+     * Show a page of earlier messages above the ones shown, keeping the chat where it is scrolled to
+     * @param messages "sender: message", oldest first
+     */
+    public void showHistory(List<String> messages) {
+        if (messages.isEmpty()) return;
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+            int value = scrollBar.getValue();
+            int maximum = scrollBar.getMaximum();
+            int offset = 0;
+            for (String msg : messages) offset = insertMsg(offset, msg, null);
+            SwingUtilities.invokeLater(() -> scrollBar.setValue(value + scrollBar.getMaximum() - maximum)); // once laid out
+        });
+    }
+
+    /**
+     * The client has moved to another room: show its name and its latest messages instead of the last room's
+     */
+    public void showRoom(String name) {
+        SwingUtilities.invokeLater(() -> {
+            chatroomNameLabel.setText("Chatroom: " + name);
+            try {
+                chatDocument.remove(0, chatDocument.getLength());
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+            client.loadOlderMessages(HISTORY_PAGE);
+        });
+    }
+
+    /**
+     * Insert a message with its links at an offset of the chat
+     * @param timestamp when it arrived, null for history
+     * @return the offset after it
+     */
+    private int insertMsg(int offset, String msg, String timestamp) {
         String[] parts = msg.split(": ", 2);
         String sender = parts[0];
         String message = parts[1];
@@ -183,21 +273,24 @@ public class ChatroomUI extends JFrame {
         if(message.startsWith("Sent a voice message:") && matcher.find()){
             String attachmentId = matcher.group(1);
             String trimmedMessage = message.substring(0, matcher.start()).trim();
-            appendToChat(sender, trimmedMessage, Color.BLACK, sender.equals("System"));
-            appendVoicePlaybackLink(attachmentId); // playback link
+            offset = insertToChat(offset, sender, trimmedMessage, Color.BLACK, sender.equals("System"), timestamp);
+            offset = insertVoicePlaybackLink(offset, attachmentId); // playback link
         }
         else if(message.startsWith("File sent:")  && matcher.find()){
             String attachmentId = matcher.group(1);
             String trimmedMessage = message.substring(0, matcher.start()).trim();
-            appendToChat(sender, trimmedMessage, Color.BLACK, sender.equals("System"));
-            appendFileDownloadLink(trimmedMessage.substring(11),attachmentId); // download link
+            offset = insertToChat(offset, sender, trimmedMessage, Color.BLACK, sender.equals("System"), timestamp);
+            offset = insertFileDownloadLink(offset, trimmedMessage.substring(11),attachmentId); // download link
         } else {
-            appendToChat(sender, message, Color.BLACK, sender.equals("System"));
+            offset = insertToChat(offset, sender, message, Color.BLACK, sender.equals("System"), timestamp);
         }
-
+        return offset;
     }
 
-    private void appendToChat(String sender, String message, Color color, boolean isSystemMessage) {
+    /**
+     * @return the offset after the inserted message
+     */
+    private int insertToChat(int offset, String sender, String message, Color color, boolean isSystemMessage, String timestamp) {
         try {
             // Create styles for different types of messages
             Style defaultStyle = chatPane.addStyle("default", null);
@@ -215,30 +308,28 @@ public class ChatroomUI extends JFrame {
             Style messageStyle = chatPane.addStyle("message", defaultStyle);
             StyleConstants.setForeground(messageStyle, color);
 
-            // Get current timestamp
-            String timestamp = timestampFormat.format(new Date());
-
-            // Append timestamp
-            chatDocument.insertString(chatDocument.getLength(),
-                    "[" + timestamp + "] ",
-                    timestampStyle
-            );
+            // Insert timestamp, history has none
+            if (timestamp != null) {
+                String stamp = "[" + timestamp + "] ";
+                chatDocument.insertString(offset, stamp, timestampStyle);
+                offset += stamp.length();
+            }
 
-            // Append sender and message
-            chatDocument.insertString(chatDocument.getLength(),
+            // Insert sender and message
+            chatDocument.insertString(offset,
                     sender + ": ",
                     senderStyle
             );
-            chatDocument.insertString(chatDocument.getLength(),
+            offset += sender.length() + 2;
+            chatDocument.insertString(offset,
                     message + "\n",
                     messageStyle
             );
-
-            // Automatically scroll to the bottom
-            chatPane.setCaretPosition(chatDocument.getLength());
+            offset += message.length() + 1;
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
     private void selectAndSendFile() {
@@ -248,14 +339,14 @@ public class ChatroomUI extends JFrame {
             File selectedFile = fileChooser.getSelectedFile();
             try {
                 System.out.println("Sending file: " + selectedFile.getName());
-                client.sendFile(selectedFile, client.GetIp(), client.GetPort(), false);
+                client.sendFile(selectedFile, false);
             } catch (Exception e ) {
                 System.err.println("Failed to send file: " + e.getMessage());
             }
         }
     }
 
-    private void appendFileDownloadLink(String filename, String AttachmentId) {
+    private int insertFileDownloadLink(int offset, String filename, String AttachmentId) {
         try {
             int linkId = linkCounter++;
 
@@ -267,14 +358,14 @@ public class ChatroomUI extends JFrame {
             fileDownloadLinks.put(linkId, filename + "/" + AttachmentId);
 
             // Insert download link with unique identifier
-            chatDocument.insertString(chatDocument.getLength(),
-                    "Download: " + filename + " [downlink-" + linkId + "]\n",
-                    linkStyle
-            );
+            String link = "Download: " + filename + " [downlink-" + linkId + "]\n";
+            chatDocument.insertString(offset, link, linkStyle);
+            offset += link.length();
 
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
 
@@ -297,16 +388,67 @@ public class ChatroomUI extends JFrame {
             File destinationFile = saveChooser.getSelectedFile();
             //TODO: Download the file and save it to the selected location
 
-            client.receiveFile(AttachmentId, client.GetIp(), client.GetPort(), destinationFile.getAbsolutePath());
-
-            JOptionPane.showMessageDialog(this,
-                    "File downloaded successfully: " + destinationFile.getName(),
-                    "Download Complete",
-                    JOptionPane.INFORMATION_MESSAGE
-            );
+            client.receiveFile(AttachmentId, destinationFile.getAbsolutePath()).whenComplete((file, error) ->
+                    SwingUtilities.invokeLater(() -> {
+                        if (error == null) {
+                            JOptionPane.showMessageDialog(this,
+                                    "File downloaded successfully: " + destinationFile.getName(),
+                                    "Download Complete",
+                                    JOptionPane.INFORMATION_MESSAGE
+                            );
+                        } else {
+                            JOptionPane.showMessageDialog(this,
+                                    "Download failed: " + error.getMessage(),
+                                    "Download Error",
+                                    JOptionPane.ERROR_MESSAGE
+                            );
+                        }
+                    }));
         }
     }
 
+    private void searchMessages() {
+        String query = JOptionPane.showInputDialog(this, "Search messages for:", "Search", JOptionPane.PLAIN_MESSAGE);
+        if (query != null && !query.trim().isEmpty()) showSearchResults(query.trim(), 0);
+    }
+
+    /**
+     * A page of matches for the query, with a button for the next page if there are more
+     */
+    private void showSearchResults(String query, int offset) {
+        client.searchMessages(query, offset, SEARCH_PAGE).whenComplete((results, error) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(this,
+                                "Search failed: " + error.getMessage(),
+                                "Search Error",
+                                JOptionPane.ERROR_MESSAGE
+                        );
+                        return;
+                    }
+                    if (results.total() == 0) {
+                        JOptionPane.showMessageDialog(this, "No messages found for \"" + query + "\"");
+                        return;
+                    }
+                    JList<String> list = new JList<>(results.messages().toArray(new String[0]));
+                    JScrollPane listPane = new JScrollPane(list);
+                    listPane.setPreferredSize(new Dimension(450, 300));
+                    int shown = offset + results.messages().size();
+                    boolean more = shown < results.total();
+                    Object[] options = more ? new Object[]{"More", "Close"} : new Object[]{"Close"};
+                    int choice = JOptionPane.showOptionDialog(this,
+                            listPane,
+                            "Results " + (offset + 1) + "-" + shown + " of " + results.total() + " for \"" + query + "\"",
+                            JOptionPane.DEFAULT_OPTION,
+                            JOptionPane.PLAIN_MESSAGE,
+                            null,
+                            options,
+                            options[0]
+                    );
+                    if (more && choice == 0) showSearchResults(query, shown);
+                }));
+    }
+
     private void recordAndSendVoice() {
         try {
             if (!isRecording) {
@@ -328,7 +470,7 @@ public class ChatroomUI extends JFrame {
                 String wavPath = AUDIO_PATH + File.separatorChar + WAV;
 
                 Pcm2Wav.convertAudioFiles(new String[]{pcmPath, wavPath});
-                client.sendFile(new File(wavPath), client.GetIp(), client.GetPort(), true);
+                client.sendFile(new File(wavPath), true);
                 System.out.printf("Record the AUDIO, path:%s\n", wavPath);
             }
         } catch (Exception e) {
@@ -336,7 +478,7 @@ public class ChatroomUI extends JFrame {
         }
     }
 
-    private void appendVoicePlaybackLink(String AttachmentId) {
+    private int insertVoicePlaybackLink(int offset, String AttachmentId) {
         try {
             int linkId = linkCounter++;
 
@@ -347,20 +489,19 @@ public class ChatroomUI extends JFrame {
 
             fileDownloadLinks.put(linkId, AttachmentId);
 
-            chatDocument.insertString(chatDocument.getLength(),
-                    "Play Voice Message\n",
-                    linkStyle
-            );
+            String link = "Play Voice Message\n";
+            chatDocument.insertString(offset, link, linkStyle);
+            offset += link.length();
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
     private void playVoiceMessage(String AttachmentId) {
         try {
             String path = AUDIO_PATH + File.separatorChar + WAV;
-            client.receiveFile(AttachmentId, client.GetIp(), client.GetPort(), path);
-            AudioPlayer.playAndDelete(path);
+            client.receiveFile(AttachmentId, path).thenRun(() -> AudioPlayer.playAndDelete(path));
 
 //            AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(voiceFile);
 //            Clip clip = AudioSystem.getClip();
@@ -375,7 +516,31 @@ public class ChatroomUI extends JFrame {
         }
     }
 
+    private void switchRoom() {
+        String name = JOptionPane.showInputDialog(this, "Join the room named:", "Rooms", JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.trim().isEmpty()) return;
+        showRoomChange(client.joinRoom(name));
+    }
+
+    private void showRoomChange(CompletableFuture<String> change) {
+        change.whenComplete((room, error) -> {
+            if (error == null) return; // shown by showRoom
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Could not change rooms: " + error.getMessage(),
+                    "Rooms",
+                    JOptionPane.ERROR_MESSAGE
+            ));
+        });
+    }
+
+    /**
+     * Back to the lobby from another room, or out of the chat from the lobby
+     */
     private void leaveChatroom() {
+        if (!client.inLobby()) {
+            showRoomChange(client.leaveRoom());
+            return;
+        }
         int choice = JOptionPane.showConfirmDialog(
                 this,
                 "Are you sure you want to leave the chatroom?",
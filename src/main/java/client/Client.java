@@ -1,102 +1,185 @@
 package client;
 
+import Utils.Digests;
+import Utils.Frame;
+import Utils.Tls;
+
 import java.io.*;
 import javax.net.ssl.*;
 import java.net.SocketException;
-import java.security.KeyStore;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Chat connection to the server. File transfers run as numbered streams over the same connection,
+ * their chunks interleaved with chat messages a frame at a time.
+ * If the connection drops, the client connects again and interrupted transfers resume where they stopped.
+ */
 public class Client {
+    private static final int RECONNECT_ATTEMPTS = 8;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30 * 1000;
+
     private final String ip;
     private final int port;
     private final ChatroomUI UI;
-    private SSLSocket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private DataOutputStream dos;
-    private String savePath;
-    private Integer file_num;
+    private volatile SSLSocket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private final Lock sendLock = new ReentrantLock(true); // fair, so chat messages take turns with file chunks
+    private final AtomicInteger nextStream = new AtomicInteger();
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>();     // by stream
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>(); // by stream
+    private final Map<Integer, List<String>> pages = new ConcurrentHashMap<>(); // history or search results by stream, until the reply
+    private final Map<Integer, CompletableFuture<SearchResults>> searches = new ConcurrentHashMap<>(); // by stream
+    private volatile int version; // of the protocol, agreed with the server
+    private int historyBefore;    // where the next older page ends, 0 until the latest page has been loaded; guarded by this
+    private int historyStream;    // of the page on its way, a reply on another stream is for a room left since
+    private boolean historyPending;
+    private boolean historyComplete;
+    private int liveMessages;     // chat messages shown since connecting, guarded by this
     private String Client_username;
+    private volatile String token;    // from logging in, renewed after each reconnect; null if there is none
     public String chatRoomName;
-
-    SSLSocketFactory socketFactory;
+    private String lobbyName;         // the room every connection starts in
+    private String room;              // the room joined, null for the lobby; joined again after a reconnect
+    private CompletableFuture<String> joining; // until the server confirms a join, chat messages are dropped; guarded by this
+    private volatile boolean closing; // no reconnect after disconnect() or when reconnecting gave up
+    private int connection;           // connections made so far, guarded by this
 
     public Client(String username, String ip, int port, ChatroomUI UI) throws Exception {
+        this(username, ip, port, null, UI);
+    }
+
+    /**
+     * @param token the session token from logging in, presented again after a reconnect instead of the password
+     */
+    public Client(String username, String ip, int port, String token, ChatroomUI UI) throws Exception {
         this.ip = ip;
         this.port = port;
         this.UI = UI;
-        this.file_num = 0;
         this.Client_username = username;
+        this.token = token;
 
-        // Load client truststore
-        KeyStore trustStore = KeyStore.getInstance("JKS");
-        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
-
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-        trustManagerFactory.init(trustStore);
-
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
-
-        socketFactory = sslContext.getSocketFactory();
-        socket = (SSLSocket) socketFactory.createSocket(ip, port);
+        socket = Tls.connect(ip, port);
 
         connect(username);
     }
 
+    /**
+     * Chat on the connection the user just logged in on, see {@link AuthClient#login}: no second connection
+     * or handshake. Reconnects open connections of their own as usual.
+     */
+    public Client(String username, AuthClient login, ChatroomUI UI) throws Exception {
+        this.ip = login.ip();
+        this.port = login.port();
+        this.UI = UI;
+        this.Client_username = username;
+        this.token = login.getToken();
+        this.socket = login.socket();
+        in = login.input(); // with whatever the server sent after Verified, still unread
+        out = login.output();
+        version = login.version();
+        send(Frame.control("upgrade"));
+        start();
+    }
+
     public void connect(String username) throws IOException {
         if (!socket.getTcpNoDelay()) socket.setTcpNoDelay(true);
 
         if (!socket.getKeepAlive()) socket.setKeepAlive(true);
 
-//        if (!socket.getOOBInline()) socket.setOOBInline(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        version = Frame.negotiate(in, out);
+        send(Frame.control("hello " + username));
+        start();
+    }
 
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "GBK"));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "GBK"));
-        dos = new DataOutputStream(socket.getOutputStream());
-        speak(username);
-        chatRoomName = in.readLine();
+    /**
+     * After the hello or upgrade: wait for the lobby's name, join the room again after a reconnect and
+     * start reading the connection
+     */
+    private void start() throws IOException {
+        lobbyName = readRoomName();
+        int current;
+        String rejoin;
+        synchronized (this) {
+            current = ++connection;
+            historyPending = false; // a page asked for on the lost connection will not come
+            rejoin = version >= Frame.ROOMS_VERSION ? room : null;
+            if (rejoin == null) chatRoomName = lobbyName;
+            else if (joining == null) joining = new CompletableFuture<>(); // the lobby's messages until then are not shown
+            notifyAll(); // uploads waiting to resume
+        }
+        if (rejoin != null) send(Frame.control("join " + rejoin));
+        pages.clear();
+        for (Integer stream : searches.keySet()) {
+            CompletableFuture<SearchResults> search = searches.remove(stream);
+            if (search != null) search.completeExceptionally(new IOException("Connection lost")); // asked on the lost connection
+        }
+        for (Upload upload : uploads.values()) {
+            if (upload.connection < current) upload.close(); // started on the lost connection
+        }
         new Thread(() -> {
-            boolean isFile = false;
             try {
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
                 while (true) {
-                    String str = in.readLine();
-                    if (str == null) break;
-                    if ("download".equals(str)){
-                        String fileName = dis.readUTF();
-                        long fileLen = dis.readLong();
-                        File directory = new File(savePath);
-                        File file = new File(directory.getAbsolutePath() + File.separatorChar + fileName);
-                        FileOutputStream fos = new FileOutputStream(file);
-                        byte[] bytes = new byte[1024];
-                        int total = 0;
-                        int length;
-                        while (total < fileLen && (length = dis.read(bytes, 0, bytes.length)) != -1) {
-                            total += length;
-                            fos.write(bytes, 0, length);
-                            fos.flush();
-                        }
-                        fos.close();
+                    Frame frame = Frame.read(in);
+                    if (frame == null) break;
+                    switch (frame.type()) {
+                        case TEXT:
+                            if (frame.stream() == 0) { // broadcast message
+                                synchronized (Client.this) {
+                                    if (joining != null) break; // of the room being left
+                                    liveMessages++;
+                                }
+                                UI.showMsg(frame.text());
+                            } else {
+                                List<String> page = pages.get(frame.stream()); // history or search results
+                                if (page != null) page.add(frame.text());
+                            }
+                            break;
+                        case CONTROL:
+                            handleReply(frame.text());
+                            break;
+                        case FILE_CHUNK:
+                            Download download = downloads.get(frame.stream());
+                            if (download != null) download.write(frame.payload());
+                            break;
+                        case ACK:
+                            Upload upload = uploads.get(frame.stream());
+                            if (upload != null) upload.ack(frame.offset());
+                            break;
+                        default:
+                            break;
                     }
-                    else UI.showMsg(str); // broadcast message
                 }
             } catch (IOException e) {
                 if (!(e instanceof SocketException)) e.printStackTrace();
+            } finally {
+                for (Upload upload : uploads.values()) upload.close();
+                for (Download download : downloads.values()) download.suspend();
+                if (!closing) reconnect();
             }
         }).start();
         new Thread(() -> {
-            final String heartbeat = "[usage for heartbeat packet]";
-            while (true) {
+            while (isCurrent(current)) {
                 try {
                     Thread.sleep(20 * 1000); // send a heartbeat packet every 20s
-                    out.write(heartbeat + "\r\n");
-                    out.flush();
-                    try {
-                        socket.sendUrgentData(0xFF);
-                    } catch (IOException ex) {
-                        //UI.showDialog("Lost connection to the server");
-                        break;
-                    }
+                    send(Frame.heartbeat());
+                } catch (IOException ex) {
+                    //UI.showDialog("Lost connection to the server");
+                    break;
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -104,135 +187,371 @@ public class Client {
         }).start();
     }
 
-    public void disconnect() throws IOException, InterruptedException {
-        speak("exit");
-        Thread.sleep(1000);
-//        socket.shutdownInput();
-//        socket.shutdownOutput();
-        socket.close();
+    private synchronized int connection() {
+        return connection;
     }
 
-    public void disconnect_file(SSLSocket skt) throws IOException, InterruptedException {
-        speak_file("exit", skt);
-        Thread.sleep(1000);
-//        skt.shutdownInput();
-//        skt.shutdownOutput();
-        skt.close();
+    private boolean isCurrent(int current) {
+        return connection() == current;
     }
 
-    public void speak(String str) {
-        out.write(str + "\r\n");
-        out.flush();
+    /**
+     * Connect again after the connection dropped, waiting longer after each failed attempt.
+     * Interrupted uploads continue on their own, downloads are asked for again from what has arrived.
+     */
+    private void reconnect() {
+        long delay = 1000;
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !closing; attempt++) {
+            try {
+                Thread.sleep(delay);
+                socket = Tls.connect(ip, port); // resumes the session of the lost connection
+                try {
+                    connect(Client_username);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                System.out.println("Reconnected to the server");
+                try {
+                    String session = token;
+                    // the token is checked without bcrypt, and a fresh one keeps a long session from expiring
+                    if (session != null && version >= Frame.AUTH_VERSION) send(Frame.control("Resume " + session));
+                    for (Download download : downloads.values()) {
+                        if (download.requestedOn < connection()) download.request();
+                    }
+                } catch (IOException e) {
+                    // lost again, the new connection's reader reconnects
+                }
+                return;
+            } catch (IOException e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        for (Download download : downloads.values()) download.fail("Lost connection to the server");
     }
 
-    public void speak_file(String str, SSLSocket skt) throws IOException {
-        System.out.println(str); // for debugging
-        PrintWriter out_file;
-        out_file = new PrintWriter(skt.getOutputStream());
-        out_file.write(str + "\r\n");
-        out_file.flush();
+    /**
+     * Wait for the connection after the given one
+     * @return false if there will be none
+     */
+    private synchronized boolean awaitReconnect(int lost) throws InterruptedException {
+        while (!closing && connection == lost) wait();
+        return !closing;
     }
 
-    public void sendFile(File file, String ip, int port, boolean isVoice) throws IOException, InterruptedException {
-        if (!file.exists()){
-            System.err.println("File not found!");
-            return;
+    private String readRoomName() throws IOException {
+        Frame frame;
+        while ((frame = Frame.read(in)) != null) {
+            if (frame.type() == Frame.Type.CONTROL && frame.text().startsWith("room ")) return frame.text().substring(5);
         }
-        new Thread(() -> {
-            try {
-                synchronized (file_num) {
-                    file_num = Integer.valueOf(1 + file_num.intValue());
-                }
+        throw new EOFException("Server closed the connection");
+    }
 
-                SSLSocket socket_file = (SSLSocket) socketFactory.createSocket(ip, port + file_num.intValue());
-
-                DataOutputStream dos_file = new DataOutputStream(socket_file.getOutputStream());
-
-                speak_file(this.Client_username, socket_file);
-                speak_file("upload " + (isVoice ? "voice" : "file"), socket_file);
-                Thread.sleep(500);
-                FileInputStream fis = new FileInputStream(file);
-                dos_file.writeUTF(file.getName());
-                dos_file.flush();
-                dos_file.writeLong(file.length());
-                dos_file.flush();
-                byte[] bytes = new byte[1024];
-                int length;
-                while ((length = fis.read(bytes, 0, bytes.length)) != -1) {
-                    dos_file.write(bytes, 0, length);
-                    dos_file.flush();
-                }
-                fis.close();
-                disconnect_file(socket_file);
-                synchronized (file_num) {
-                    file_num = Integer.valueOf(file_num.intValue() - 1);
-                }                
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void send(byte[] frame) throws IOException {
+        sendLock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Replies about transfers: "resume &lt;stream&gt; &lt;offset&gt;" or "resend &lt;stream&gt;" for an upload,
+     * "download &lt;stream&gt; &lt;length&gt; &lt;offset&gt; &lt;name&gt;" or "nofile &lt;stream&gt; &lt;id&gt;" for a download;
+     * "history &lt;stream&gt; &lt;count&gt; &lt;before&gt;" ending a page of history
+     * "search &lt;stream&gt; &lt;count&gt; &lt;total&gt;" ending search results;
+     * "room &lt;name&gt;" or "noroom &lt;name&gt;" answering a join;
+     * "token &lt;token&gt;" and "Verified", or "NotVerified" once the token has expired, answering a resume
+     */
+    private void handleReply(String reply) throws IOException {
+        String[] parts = reply.split(" ", 5);
+        if (reply.startsWith("resume ")) {
+            Upload upload = uploads.get(Integer.parseInt(parts[1]));
+            if (upload != null) upload.resume(Long.parseLong(parts[2]));
+        } else if (reply.startsWith("resend ")) {
+            Upload upload = uploads.get(Integer.parseInt(parts[1]));
+            if (upload != null) upload.resend();
+        } else if (reply.startsWith("download ")) {
+            Download download = downloads.get(Integer.parseInt(parts[1]));
+            if (download != null) download.start(Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        } else if (reply.startsWith("nofile ")) {
+            Download download = downloads.get(Integer.parseInt(parts[1]));
+            if (download != null) download.fail("Attachment not found: " + parts[2]);
+        } else if (reply.startsWith("history ")) {
+            int stream = Integer.parseInt(parts[1]);
+            List<String> page = pages.remove(stream);
+            if (page != null) showHistory(stream, page, Integer.parseInt(parts[3]));
+        } else if (reply.startsWith("search ")) {
+            int stream = Integer.parseInt(parts[1]);
+            List<String> page = pages.remove(stream);
+            CompletableFuture<SearchResults> search = searches.remove(stream);
+            if (page != null && search != null) search.complete(new SearchResults(page, Integer.parseInt(parts[3])));
+        } else if (reply.startsWith("token ")) {
+            token = reply.substring(6);
+        } else if (reply.equals("NotVerified")) {
+            token = null;
+        } else if (reply.startsWith("room ")) {
+            enterRoom(reply.substring(5));
+        } else if (reply.startsWith("noroom ")) {
+            CompletableFuture<String> join;
+            synchronized (this) {
+                join = joining;
+                joining = null;
             }
-        }).start();            
+            if (join != null) join.completeExceptionally(new IOException("No room " + reply.substring(7)));
+        }
     }
 
-    public void receiveFile(String AttachmentId, String ip, int port, String sPath) throws IOException, InterruptedException {
-        new Thread(() -> {
-            try {
-                synchronized (file_num) {
-                    file_num = Integer.valueOf(1 + file_num.intValue());
-                }
+    /**
+     * The server has moved this connection to a room: start over with its history
+     */
+    private void enterRoom(String name) {
+        CompletableFuture<String> join;
+        synchronized (this) {
+            join = joining;
+            joining = null;
+            chatRoomName = name;
+            room = name.equals(lobbyName) ? null : name;
+            historyBefore = 0;
+            historyStream = 0;
+            historyPending = false;
+            historyComplete = false;
+            liveMessages = 0;
+        }
+        UI.showRoom(name);
+        if (join != null) join.complete(name);
+    }
+
+    /**
+     * Move to a room, created by the server if there is none; only one join can be on its way at a time
+     * @return completes with the room's name once the server has moved this connection there
+     */
+    public CompletableFuture<String> joinRoom(String name) {
+        return requestRoom("join " + name.trim().replace('\n', ' '));
+    }
 
-                // Create SSL socket for file transfer
-                SSLSocket socket_file = (SSLSocket) socketFactory.createSocket(ip, port + file_num.intValue());
+    /**
+     * Go back to the lobby
+     */
+    public CompletableFuture<String> leaveRoom() {
+        return requestRoom("leave");
+    }
 
-                BufferedReader in_file = new BufferedReader(new InputStreamReader(socket_file.getInputStream()));
-                
-                speak_file(this.Client_username, socket_file);
-                //TODO: Change "download" in server
-                speak_file("download" + " " + AttachmentId, socket_file);
+    public synchronized boolean inLobby() {
+        return room == null;
+    }
 
-                boolean isFile = false;
-                DataInputStream dis = new DataInputStream(socket_file.getInputStream());
-                while (true) {
-                    if (isFile) {
-                        String fileName = dis.readUTF();
-                        //System.out.printf("qnmqnmqnm, path:%s\n", fileName);
-                        long fileLen = dis.readLong();
+    private CompletableFuture<String> requestRoom(String command) {
+        CompletableFuture<String> join = new CompletableFuture<>();
+        synchronized (this) {
+            if (version < Frame.ROOMS_VERSION) {
+                join.completeExceptionally(new IOException("The server has no other rooms"));
+                return join;
+            }
+            if (joining != null) {
+                join.completeExceptionally(new IOException("Already changing rooms"));
+                return join;
+            }
+            joining = join;
+        }
+        try {
+            send(Frame.control(command));
+        } catch (IOException e) {
+            synchronized (this) {
+                joining = null;
+            }
+            join.completeExceptionally(e);
+        }
+        return join;
+    }
 
-                        File file = new File(sPath);
-                        System.out.println("PATH: "+file.getAbsolutePath());
+    /**
+     * Ask for the page of history before what is shown, unless one is on its way or everything is shown.
+     * The chat pane calls this when it is scrolled to the top.
+     */
+    public void loadOlderMessages(int count) {
+        int stream = nextStream.incrementAndGet();
+        String command;
+        synchronized (this) {
+            if (historyPending || historyComplete || version < Frame.HISTORY_VERSION) return;
+            historyPending = true;
+            historyStream = stream;
+            // the latest page also has the messages shown since connecting, they are left out again
+            command = "history " + stream + " " + historyBefore + " " + (historyBefore == 0 ? count + liveMessages : count);
+        }
+        pages.put(stream, new ArrayList<>());
+        try {
+            send(Frame.control(command));
+        } catch (IOException e) {
+            pages.remove(stream); // asked for again once the pane is scrolled after the reconnect
+            synchronized (this) {
+                historyPending = false;
+            }
+        }
+    }
+
+    private void showHistory(int stream, List<String> page, int before) {
+        int shown;
+        synchronized (this) {
+            if (stream != historyStream) return; // asked for in the room left since
+            shown = historyBefore == 0 ? liveMessages : 0;
+            historyBefore = before;
+            historyComplete = before <= 0;
+            historyPending = false;
+        }
+        UI.showHistory(page.subList(0, Math.max(0, page.size() - shown)));
+    }
+
+    /**
+     * Search the room's saved messages for every word of the query, on a new stream
+     * @return completes with up to count matches from the offset-th on, best first
+     */
+    public CompletableFuture<SearchResults> searchMessages(String query, int offset, int count) {
+        CompletableFuture<SearchResults> search = new CompletableFuture<>();
+        if (version < Frame.SEARCH_VERSION) {
+            search.completeExceptionally(new IOException("The server does not support search"));
+            return search;
+        }
+        int stream = nextStream.incrementAndGet();
+        pages.put(stream, new ArrayList<>());
+        searches.put(stream, search);
+        try {
+            send(Frame.control("search " + stream + " " + offset + " " + count + " " + query.replace('\n', ' ')));
+        } catch (IOException e) {
+            pages.remove(stream);
+            searches.remove(stream);
+            search.completeExceptionally(e);
+        }
+        return search;
+    }
+
+    /**
+     * A page of search results, and how many messages match in all
+     */
+    public static final class SearchResults {
+        private final List<String> messages;
+        private final int total;
+
+        SearchResults(List<String> messages, int total) {
+            this.messages = messages;
+            this.total = total;
+        }
+
+        /**
+         * "sender: message", best match first
+         */
+        public List<String> messages() {
+            return messages;
+        }
 
-                        FileOutputStream fos = new FileOutputStream(file);
-                        byte[] bytes = new byte[1024];
-                        int total = 0;
+        public int total() {
+            return total;
+        }
+    }
+
+    public void disconnect() throws IOException {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        send(Frame.control("exit"));
+        socket.close();
+    }
+
+    public void speak(String str) {
+        try {
+            send(Frame.text(str));
+        } catch (IOException e) {
+            System.err.println("Failed to send message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Upload a file on a new stream, in the background. If the connection drops, the upload continues
+     * after the reconnect from what the server has; sending the same file again later resumes it too.
+     * The file's digest goes first, so nothing is sent if this user already stored the same contents.
+     */
+    public void sendFile(File file, boolean isVoice) {
+        if (!file.exists()){
+            System.err.println("File not found!");
+            return;
+        }
+        new Thread(() -> {
+            int stream = nextStream.incrementAndGet();
+            String command;
+            try {
+                command = "upload " + stream + " " + (isVoice ? "voice" : "file") + " " + file.length()
+                        + " " + transferId(file) + " " + Digests.sha256(file) + " " + file.getName();
+            } catch (IOException e) {
+                System.err.println("Cannot read " + file + ": " + e.getMessage());
+                return;
+            }
+            try {
+                for (int attempt = 0; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+                    int current = connection();
+                    Upload upload = new Upload(current);
+                    uploads.put(stream, upload);
+                    try (FileInputStream fis = new FileInputStream(file)) {
+                        send(Frame.control(command));
+                        long sent = upload.awaitResume(); // what the server already has
+                        fis.getChannel().position(sent);
+                        byte[] bytes = new byte[Frame.CHUNK_SIZE];
                         int length;
-                        while (total < fileLen && (length = dis.read(bytes, 0, bytes.length)) != -1) {
-                            total += length;
-                            fos.write(bytes, 0, length);
-                            fos.flush();
+                        while ((length = fis.read(bytes, 0, bytes.length)) != -1) {
+                            if (!upload.await(sent + length - Frame.WINDOW)) break; // stay within the window the server has acked
+                            send(Frame.encode(Frame.Type.FILE_CHUNK, stream, bytes, 0, length));
+                            sent += length;
                         }
-                        fos.close();
-                        isFile = false;
-                        break;
+                        // the server has stored and announced the file, or lost the stored copy it skipped for
+                        if (upload.await(file.length())) return;
+                    } catch (FileNotFoundException e) {
+                        System.err.println("Cannot read " + file + ": " + e.getMessage());
+                        return;
+                    } catch (IOException e) {
+                        System.err.println("Upload of " + file.getName() + " interrupted: " + e.getMessage());
+                        if (!awaitReconnect(current)) return;
+                    } finally {
+                        uploads.remove(stream, upload);
                     }
-                    //.out.printf("d\n");
-                    String strr = in_file.readLine();
-                    //System.out.printf("dd\n");
-                    if (strr == null) break;
-                    //System.out.printf("dddddddd");
-                    if ("download".equals(strr)) isFile = true;
-                }
-                try {
-                    disconnect_file(socket_file);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                
-                synchronized (file_num) {
-                    file_num = Integer.valueOf(file_num.intValue() - 1);
                 }
-            } catch (IOException e) {
-                if (!(e instanceof SocketException)) e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
-        }).start();  
+        }).start();
+    }
+
+    /**
+     * Name an upload after the file, so sending the same unchanged file again resumes it
+     */
+    private static String transferId(File file) {
+        String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString().replace("-", "");
+    }
+
+    /**
+     * Download an attachment on a new stream. The chunks go to a part file next to sPath, so a download
+     * cut off by a dropped connection, or asked for again later, continues from what has arrived.
+     * @return completes with the saved file once the whole attachment has arrived
+     */
+    public CompletableFuture<File> receiveFile(String AttachmentId, String sPath) {
+        int stream = nextStream.incrementAndGet();
+        Download download = new Download(stream, AttachmentId, new File(sPath));
+        downloads.put(stream, download);
+        try {
+            download.request();
+        } catch (IOException e) {
+            download.fail(e.getMessage());
+        }
+        return download.done;
     }
 
     public String GetIp(){
@@ -243,4 +562,173 @@ public class Client {
         return this.port;
     }
 
-}
\ No newline at end of file
+    /**
+     * Sending side of an upload, waiting on the server's acks
+     */
+    private static class Upload {
+        private final int connection; // the connection it was started on
+        private long resumeAt = -1;
+        private long acked;
+        private boolean resend; // the server asks for the whole file again
+        private boolean closed;
+
+        Upload(int connection) {
+            this.connection = connection;
+        }
+
+        synchronized void resume(long offset) {
+            resumeAt = offset;
+            acked = Math.max(acked, offset);
+            notifyAll();
+        }
+
+        /**
+         * Wait for the server to say where to continue
+         */
+        synchronized long awaitResume() throws IOException, InterruptedException {
+            while (resumeAt < 0) {
+                if (closed) throw new EOFException("Lost connection to the server");
+                wait();
+            }
+            return resumeAt;
+        }
+
+        synchronized void ack(long offset) {
+            acked = Math.max(acked, offset);
+            notifyAll();
+        }
+
+        synchronized void resend() {
+            resend = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the server has acked this offset
+         * @return false if the server asks for the upload to start over instead
+         */
+        synchronized boolean await(long offset) throws IOException, InterruptedException {
+            while (acked < offset) {
+                if (resend) return false;
+                if (closed) throw new EOFException("Lost connection to the server");
+                wait();
+            }
+            return !resend;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Receiving side of a download, written by the reader thread as the chunks arrive
+     */
+    private class Download {
+        private final int stream;
+        private final String attachmentId;
+        private final File file;
+        private final File part; // what has arrived so far, renamed to file when complete
+        private final CompletableFuture<File> done = new CompletableFuture<>();
+        private volatile int requestedOn; // the connection it was last asked for on
+        private OutputStream out;
+        private long length;
+        private long received;
+        private long acked;
+
+        Download(int stream, String attachmentId, File file) {
+            this.stream = stream;
+            this.attachmentId = attachmentId;
+            this.file = file;
+            this.part = new File(file.getPath() + "." + attachmentId + ".part");
+        }
+
+        /**
+         * Ask for the attachment from the end of the part file
+         */
+        void request() throws IOException {
+            requestedOn = connection();
+            send(Frame.control("download " + stream + " " + attachmentId + " " + part.length()));
+        }
+
+        /**
+         * @param offset where the server starts, the part file is cut back to it if it has more
+         */
+        void start(long length, long offset) throws IOException {
+            this.length = length;
+            this.received = offset;
+            this.acked = offset;
+            System.out.println("PATH: " + file.getAbsolutePath());
+            try {
+                if (part.length() > offset) {
+                    try (RandomAccessFile partial = new RandomAccessFile(part, "rw")) {
+                        partial.setLength(offset);
+                    }
+                }
+                out = new BufferedOutputStream(new FileOutputStream(part, true));
+            } catch (IOException e) {
+                System.err.println("Cannot save " + file + ": " + e.getMessage()); // keep acking so the server finishes
+            }
+            if (received >= length) finish();
+        }
+
+        void write(ByteBuffer chunk) throws IOException {
+            int count = chunk.remaining();
+            if (out != null) {
+                try {
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), count);
+                } catch (IOException e) {
+                    System.err.println("Cannot save " + file + ": " + e.getMessage());
+                    closeOutput();
+                }
+            }
+            received += count;
+            if (Frame.ackDue(received, acked, length)) {
+                acked = received;
+                send(Frame.ack(stream, received));
+            }
+            if (received >= length) finish();
+        }
+
+        private void finish() {
+            downloads.remove(stream);
+            try {
+                if (!closeOutput()) throw new IOException("Cannot save " + file);
+                Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                done.complete(file);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * The connection dropped: keep what has arrived for the request after the reconnect
+         */
+        void suspend() {
+            closeOutput();
+        }
+
+        void fail(String reason) {
+            downloads.remove(stream);
+            closeOutput();
+            System.err.println(reason);
+            done.completeExceptionally(new IOException(reason));
+        }
+
+        /**
+         * @return false if the file could not be written
+         */
+        private boolean closeOutput() {
+            if (out == null) return false;
+            try {
+                out.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                out = null;
+            }
+        }
+    }
+}
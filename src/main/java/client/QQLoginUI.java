@@ -119,6 +119,7 @@ public class QQLoginUI extends JFrame {
 	private class LoginWorker extends SwingWorker<Boolean, Void> {
 		private final String username;
 		private final String password;
+		private AuthClient login;
 
 		public LoginWorker(String username, String password) {
 			this.username = username;
@@ -128,8 +129,8 @@ public class QQLoginUI extends JFrame {
 		@Override
 		protected Boolean doInBackground() throws Exception {
 			// login verification logic
-			AuthClient guest = new AuthClient(IP, Port, QQLoginUI.this);
-			int verify = guest.GuestSpeakAndVerify("Login " + username + " " + password);
+			login = new AuthClient(IP, Port, QQLoginUI.this);
+			int verify = login.login(username, password); // kept for the chat once verified
             return verify == 1;
         }
 
@@ -139,7 +140,10 @@ public class QQLoginUI extends JFrame {
 				boolean loginSuccess = get();
 				if (loginSuccess) {
 					QQLoginUI.this.dispose();
-					new ChatroomUI(username, IP, Port).setVisible(true);
+					// a server that cannot upgrade the connection gets a new one
+					ChatroomUI chatroom = login.isHandedOver() ? new ChatroomUI(username, login)
+							: new ChatroomUI(username, IP, Port, login.getToken());
+					chatroom.setVisible(true);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -29,6 +29,9 @@ CREATE TABLE IF NOT EXISTS messages (
 
 INSERT IGNORE INTO messages (room_id, sender, message) VALUES (1, 'System', 'default');
 
+-- history is paged by room, newest first, from a message id down
+CREATE INDEX idx_messages_room_mid ON messages (room_id, mid);
+
 CREATE TABLE IF NOT EXISTS Attachments (
     attachment_id INTEGER PRIMARY KEY AUTO_INCREMENT,
     file_name VARCHAR(255) NOT NULL,
@@ -39,16 +42,30 @@ CREATE TABLE IF NOT EXISTS Attachments (
     FOREIGN KEY (message_id) REFERENCES Messages(mid) ON DELETE CASCADE
 );
 
+-- whether a user already stored some contents is found from the blob's path through its attachments
+CREATE INDEX idx_attachments_file_path ON Attachments (file_path);
+
+-- contents of attachments, stored once per SHA-256 digest; ref_count is the number of Attachments rows with its file_path
+CREATE TABLE IF NOT EXISTS blobs (
+    digest CHAR(64) PRIMARY KEY,
+    file_path VARCHAR(255) NOT NULL,
+    size BIGINT NOT NULL,
+    ref_count INTEGER NOT NULL DEFAULT 0
+);
+
 -- INSERT INTO Attachments (file_name, message_id, file_path, file_type) VALUES (?, ?, '', ?)
 
--- -- load latest messages
--- SELECT sender, message, sent_at
+-- -- load a page of history, the latest for ? = the largest id; the next page is before the oldest mid returned
+-- SELECT mid, sender, message
 -- FROM messages
--- WHERE m.room_id = ?
--- ORDER BY m.sent_at DESC
--- LIMIT 20 OFFSET 0; -- 20 messages per page
+-- WHERE room_id = ? AND mid < ?
+-- ORDER BY mid DESC
+-- LIMIT 50;
 --
--- -- search messages
--- SELECT * FROM messages
--- WHERE room_id = ? AND message LIKE '%???????%'
--- ORDER BY sent_at DESC;
\ No newline at end of file
+-- -- search messages: a LIKE '%...%' scan reads every message, so search goes through an index instead,
+-- -- the messages_fts FTS5 table on SQLite (created by FtsSearch) or an index in the server's memory
+-- SELECT m.sender, m.message
+-- FROM messages_fts JOIN messages m ON m.mid = messages_fts.rowid
+-- WHERE messages_fts MATCH '"word" "word"' AND m.room_id = ?
+-- ORDER BY rank
+-- LIMIT 20 OFFSET ?;
\ No newline at end of file
@@ -0,0 +1,77 @@
+import Server.AttachmentCache;
+import Server.DatabaseConnection;
+import Utils.Digests;
+import Utils.ResourceLoader;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A voice note landing in a busy room: every listener looks up the same attachment within a few seconds.
+ * getFile with the attachment cache turned off (a query per lookup) against the default cache.
+ * Args: [listeners] [lookups per listener]
+ */
+public class attachment_cache_bench {
+
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Path work = Files.createTempDirectory("attachment_cache_bench");
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new java.io.OutputStream() { // getFile logs every query
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            for (boolean cached : new boolean[]{false, true}) {
+                Properties properties = ResourceLoader.loadProperties();
+                properties.setProperty("db.type", "sqlite");
+                properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench" + round + cached + ".db"));
+                properties.setProperty("server.stagingdir", Files.createDirectories(work.resolve("staging")) + "/");
+                properties.setProperty("server.filedir", Files.createDirectories(work.resolve("files")) + "/");
+                if (!cached) properties.setProperty("db.attachmentcache.bytes", "0");
+                DatabaseConnection database = new DatabaseConnection(properties);
+                database.initDatabase();
+                int id = voiceNote(database, properties, round + "" + cached);
+
+                CountDownLatch start = new CountDownLatch(1);
+                Thread[] threads = new Thread[listeners];
+                for (int i = 0; i < listeners; i++) {
+                    threads[i] = new Thread(() -> {
+                        try {
+                            start.await();
+                            for (int n = 0; n < lookups; n++) {
+                                if (database.getFile(id) == null) throw new IllegalStateException("Attachment lost");
+                            }
+                        } catch (InterruptedException ignored) {
+                        }
+                    });
+                    threads[i].start();
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Thread thread : threads) thread.join();
+                double seconds = (System.nanoTime() - begin) / 1e9;
+                AttachmentCache cache = database.getAttachmentCache();
+                if (round == 1) {
+                    out.printf("%-9s %10.0f lookups/s | %6d hits | %6d misses%n", cached ? "cached" : "uncached",
+                            listeners * lookups / seconds, cache.hitCount(), cache.missCount());
+                }
+                database.close();
+            }
+        }
+    }
+
+    private static int voiceNote(DatabaseConnection database, Properties properties, String name) throws Exception {
+        String fileName = "System_" + System.nanoTime() + "_voice" + name + ".wav";
+        Path path = Paths.get(properties.getProperty("server.stagingdir"), fileName);
+        Files.write(path, ("RIFF" + name).getBytes());
+        File file = path.toFile();
+        return database.saveUpload(fileName, "voice" + name + ".wav", Digests.sha256(file), "Voice", 1, "System", id -> "Sent a voice message: [ID: " + id + "]").attachmentId();
+    }
+}
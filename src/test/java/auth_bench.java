@@ -0,0 +1,130 @@
+import Server.AuthService;
+import Server.DatabaseConnection;
+import Utils.ResourceLoader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reconnect storm: every client logs in again at once, as after a restart. Each client checking its password
+ * with bcrypt on its own session thread, as before, against the checks queued on the bounded auth threads, and
+ * against every client presenting the token from its earlier login. A ticker standing in for the chat measures
+ * how late its 1 ms ticks come meanwhile.
+ * Args: [clients] [auth threads] [auth queue]
+ */
+public class auth_bench {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int queue = args.length > 2 ? Integer.parseInt(args[2]) : clients;
+
+        Path work = Files.createTempDirectory("auth_bench");
+        Properties properties = ResourceLoader.loadProperties();
+        properties.setProperty("db.type", "sqlite");
+        properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        properties.setProperty("server.auth.threads", String.valueOf(threads));
+        properties.setProperty("server.auth.queue", String.valueOf(queue));
+        properties.setProperty("server.auth.keyfile", work.resolve("auth.key").toString());
+        DatabaseConnection database = new DatabaseConnection(properties);
+        database.initDatabase();
+        database.createUser("alice", "secret");
+        AuthService auth = new AuthService(properties);
+        String token = auth.issue("alice");
+
+        System.out.printf("%d clients; %d auth threads, queue %d; %d cores%n", clients, threads, queue,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-16s %10s %10s %10s %12s %12s%n", "login", "total", "verified", "busy", "tick p50", "tick max");
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            boolean print = round == 1;
+            run("inline bcrypt", print, clients, auth, done -> {
+                for (int i = 0; i < clients; i++) {
+                    new Thread(() -> done.accept(database.verifyUser("alice", "secret"))).start();
+                }
+            });
+            run("auth threads", print, clients, auth, done -> {
+                for (int i = 0; i < clients; i++) {
+                    if (!auth.execute(() -> done.accept(database.verifyUser("alice", "secret")))) done.busy();
+                }
+            });
+            run("token", print, clients, auth, done -> {
+                for (int i = 0; i < clients; i++) done.accept("alice".equals(auth.verify(token)));
+            });
+        }
+        auth.shutdown();
+        database.close();
+    }
+
+    private static void run(String name, boolean print, int clients, AuthService auth, Storm storm) throws Exception {
+        Done done = new Done(clients);
+        Ticker ticker = new Ticker();
+        ticker.start();
+        long start = System.nanoTime();
+        storm.start(done);
+        done.latch.await();
+        double millis = (System.nanoTime() - start) / 1e6;
+        long[] lateness = ticker.finish();
+        if (print) {
+            System.out.printf("%-16s %7.0f ms %10d %10d %9.2f ms %9.2f ms%n", name, millis, done.verified.get(), done.busy.get(),
+                    lateness[lateness.length / 2] / 1e6, lateness[lateness.length - 1] / 1e6);
+        }
+    }
+
+    interface Storm {
+        void start(Done done);
+    }
+
+    static final class Done {
+        final CountDownLatch latch;
+        final AtomicInteger verified = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+
+        Done(int clients) {
+            latch = new CountDownLatch(clients);
+        }
+
+        void accept(boolean ok) {
+            if (ok) verified.incrementAndGet();
+            latch.countDown();
+        }
+
+        void busy() {
+            busy.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Sleeps 1 ms at a time and keeps how much later than that it woke up
+     */
+    static final class Ticker extends Thread {
+        private final long[] lateness = new long[100_000];
+        private int count;
+        private volatile boolean running = true;
+
+        @Override
+        public void run() {
+            while (running && count < lateness.length) {
+                long before = System.nanoTime();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                lateness[count++] = Math.max(0, System.nanoTime() - before - 1_000_000);
+            }
+        }
+
+        long[] finish() throws InterruptedException {
+            running = false;
+            join();
+            long[] sorted = Arrays.copyOf(lateness, Math.max(1, count));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
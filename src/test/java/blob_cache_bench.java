@@ -0,0 +1,156 @@
+import Server.ChatRoom;
+import Server.ChatServer;
+import Server.DatabaseConnection;
+import Server.NioServer;
+import Server.Server;
+import Utils.Digests;
+import Utils.Frame;
+import Utils.ResourceLoader;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A voice message the whole room plays right after it is posted: every listener downloads it at once.
+ * Both engines with the blob cache turned off (the file is opened and read for each download) and on.
+ * Args: [listeners] [file size in KB]
+ */
+public class blob_cache_bench {
+    private static final int PORT = 19400;
+
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        Path work = Files.createTempDirectory("blob_cache_bench");
+        SSLContext context = context();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() { // the servers log every download
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        out.printf("%d listeners, %d KB%n", listeners, kilobytes);
+        int port = PORT;
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            for (boolean nio : new boolean[]{false, true}) {
+                for (boolean cached : new boolean[]{false, true}) {
+                    Properties properties = ResourceLoader.loadProperties();
+                    properties.setProperty("db.type", "sqlite");
+                    properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench" + port + ".db"));
+                    properties.setProperty("server.stagingdir", Files.createDirectories(work.resolve("staging")) + "/");
+                    properties.setProperty("server.filedir", Files.createDirectories(work.resolve("files" + port)) + "/");
+                    if (!cached) properties.setProperty("server.blobcache.bytes", "0");
+                    DatabaseConnection database = new DatabaseConnection(properties);
+                    database.initDatabase();
+                    database.close();
+
+                    ChatServer server = nio ? new NioServer(port, "bench", 2, properties) : new Server(port, "bench", false, properties);
+                    ChatRoom.create("bench", server);
+                    int id = voiceNote(server.getDatabase(), properties, kilobytes);
+                    double seconds = downloadAll(context, port, id, listeners);
+                    ChatRoom.close();
+                    if (round == 1) {
+                        out.printf("%-8s %-8s %8.1f ms %8.1f MB/s%n", nio ? "nio" : "blocking", cached ? "cached" : "disk",
+                                seconds * 1000, listeners * (double) kilobytes / 1024 / seconds);
+                    }
+                    port++;
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Every listener downloads the attachment at the same moment
+     * @return seconds until the last one has it
+     */
+    private static double downloadAll(SSLContext context, int port, int id, int listeners) throws Exception {
+        CountDownLatch ready = new CountDownLatch(listeners);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong failed = new AtomicLong();
+        Thread[] threads = new Thread[listeners];
+        for (int i = 0; i < listeners; i++) {
+            threads[i] = new Thread(() -> {
+                try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                    OutputStream out = socket.getOutputStream();
+                    Frame.negotiate(in, out);
+                    out.write(Frame.control("hello Guest"));
+                    ready.countDown();
+                    start.await();
+                    download(in, out, id);
+                    out.write(Frame.control("exit"));
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    ready.countDown();
+                }
+            });
+            threads[i].start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        if (failed.get() > 0) throw new IllegalStateException(failed.get() + " downloads failed");
+        return (System.nanoTime() - begin) / 1e9;
+    }
+
+    /**
+     * Download an attachment the way the client does, acking every half window
+     */
+    private static void download(DataInputStream in, OutputStream out, int id) throws IOException {
+        out.write(Frame.control("download 1 " + id + " 0"));
+        long length = -1;
+        long received = 0;
+        long acked = 0;
+        while (length < 0 || received < length) {
+            Frame frame = Frame.read(in);
+            if (frame == null) throw new EOFException("Download cut off at " + received + " bytes");
+            if (frame.type() == Frame.Type.CONTROL && frame.text().startsWith("download ")) {
+                length = Long.parseLong(frame.text().split(" ")[2]);
+            } else if (frame.type() == Frame.Type.FILE_CHUNK) {
+                received += frame.payload().remaining();
+                if (Frame.ackDue(received, acked, length)) {
+                    acked = received;
+                    out.write(Frame.ack(1, received));
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a voice message through the running server's database, which caches it like an upload would
+     */
+    private static int voiceNote(DatabaseConnection database, Properties properties, int kilobytes) throws IOException {
+        String fileName = "System_" + System.nanoTime() + "_voice.wav";
+        Path path = Paths.get(properties.getProperty("server.stagingdir"), fileName);
+        byte[] data = new byte[kilobytes * 1024];
+        new Random(kilobytes).nextBytes(data);
+        Files.write(path, data);
+        int id = database.saveUpload(fileName, "voice.wav", Digests.sha256(path.toFile()), "Voice", 1, "System", attachmentId -> "Sent a voice message: [ID: " + attachmentId + "]").attachmentId();
+        database.getBlobCache().load(database.getFile(id));
+        return id;
+    }
+
+    private static SSLContext context() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(new FileInputStream("server.keystore"), "123456".toCharArray());
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, "123456".toCharArray());
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+}
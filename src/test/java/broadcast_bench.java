@@ -0,0 +1,86 @@
+import Server.SocketSession;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation and throughput of one broadcast fan-out at 100 / 1,000 / 10,000 recipients:
+ * the old per-recipient PrintWriter + OutputStreamWriter against encode-once to cached session outputs.
+ * Sockets are replaced by a discarding stream, so this measures the server's own cost of a fan-out.
+ */
+public class broadcast_bench {
+    private static final String FROM = "alice";
+    private static final String MSG = "hello everyone, this is a typical chat message of moderate length";
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {100, 1_000, 10_000};
+        System.out.printf("%-10s %-12s %16s %18s %16s%n", "recipients", "path", "bytes/broadcast", "broadcasts/s", "deliveries/s");
+        for (int recipients : sizes) {
+            OutputStream[] sinks = new OutputStream[recipients];
+            SocketSession[] sessions = new SocketSession[recipients];
+            for (int i = 0; i < recipients; i++) {
+                sinks[i] = new NullOutputStream();
+                sessions[i] = new SocketSession("user" + i, "/127.0.0.1:" + i, sinks[i]);
+            }
+            int rounds = Math.max(20, 200_000 / recipients);
+
+            Result old = measure(rounds, () -> {
+                for (OutputStream sink : sinks) {
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(sink, "GBK"));
+                    out.write(FROM + ": " + MSG + "\r\n");
+                    out.flush();
+                }
+            });
+            Result cached = measure(rounds, () -> {
+                byte[] frame = SocketSession.encode(FROM, MSG);
+                for (SocketSession session : sessions) session.send(frame);
+            });
+
+            print(recipients, "per-writer", old, recipients);
+            print(recipients, "encode-once", cached, recipients);
+            System.out.printf("%-10d %-12s %15.1fx%n", recipients, "speedup", old.nanosPerRound / cached.nanosPerRound);
+        }
+    }
+
+    private static void print(int recipients, String path, Result result, int deliveries) {
+        double perSecond = 1e9 / result.nanosPerRound;
+        System.out.printf("%-10d %-12s %16d %18.0f %16.0f%n", recipients, path, result.bytesPerRound, perSecond, perSecond * deliveries);
+    }
+
+    private static Result measure(int rounds, Fanout fanout) throws IOException {
+        for (int i = 0; i < rounds; i++) fanout.run(); // warm up
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) fanout.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new Result(allocated / rounds, (double) elapsed / rounds);
+    }
+
+    private interface Fanout {
+        void run() throws IOException;
+    }
+
+    private static class Result {
+        final long bytesPerRound;
+        final double nanosPerRound;
+
+        Result(long bytesPerRound, double nanosPerRound) {
+            this.bytesPerRound = bytesPerRound;
+            this.nanosPerRound = nanosPerRound;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -1,6 +1,5 @@
 //import Server.ChatRoom;
 //import client.ClientUI;
-import client.QQ;
 import client.QQLoginUI;
 
 public class client_run {
@@ -0,0 +1,266 @@
+import Server.ChatRoom;
+import Server.ChatServer;
+import Server.Cluster;
+import Server.DatabaseConnection;
+import Server.MessageSearch;
+import Server.NioServer;
+import Server.OutboundQueue;
+import Server.Room;
+import Server.Session;
+import Utils.Frame;
+import Utils.ResourceLoader;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Several server nodes on localhost sharing one room over their cluster links, with a SQLite database they share.
+ * Every node floods the room with messages from its own users at once; then checks that all members on all nodes
+ * got every message exactly once and in the same order, how long delivery took, and that the messages are
+ * saved and searchable from every node. Finally the node owning the room is restarted and the room goes on.
+ * Args: [nodes] [messages per node] [members per node]
+ */
+public class cluster_bench {
+    private static final int CHAT_PORT = 19400;
+    private static final int LINK_PORT = 19500;
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        int memberCount = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Path work = Files.createTempDirectory("cluster_bench");
+        Properties shared = ResourceLoader.loadProperties();
+        shared.setProperty("db.type", "sqlite");
+        shared.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        shared.setProperty("server.filedir", Files.createDirectories(work.resolve("files")) + "/");
+        shared.setProperty("db.search", "memory"); // each node indexes in memory, so it has to learn the others' ids
+        StringBuilder nodes = new StringBuilder();
+        for (int i = 0; i < nodeCount; i++) nodes.append(i == 0 ? "" : ",").append("localhost:").append(LINK_PORT + i);
+        shared.setProperty("cluster.nodes", nodes.toString());
+        shared.setProperty("cluster.secret", "bench");
+        DatabaseConnection database = new DatabaseConnection(shared);
+        database.initDatabase();
+        database.close();
+
+        ChatServer[] servers = new ChatServer[nodeCount];
+        for (int i = 0; i < nodeCount; i++) servers[i] = start(shared, i);
+        ChatRoom.create("bench", servers[0]);
+        awaitLinks(servers);
+
+        Room[] rooms = new Room[nodeCount];
+        List<List<Member>> members = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            rooms[i] = servers[i].getRooms().get("cluster");
+            members.add(join(servers[i], rooms[i], memberCount));
+        }
+        int owner = -1;
+        for (int i = 0; i < nodeCount; i++) if (servers[i].getRooms().cluster().owns(rooms[i].id())) owner = i;
+        System.out.printf("%d nodes, %d members each, %d messages from each; room %d is owned by node %d%n",
+                nodeCount, memberCount, messages, rooms[0].id(), owner);
+        Thread.sleep(200);
+
+        Map<String, Long> sentAt = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        Thread[] senders = new Thread[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            Room room = rooms[i];
+            int node = i;
+            senders[i] = new Thread(() -> {
+                for (int j = 0; j < messages; j++) {
+                    String text = "node" + node + " says m" + node + "x" + j;
+                    sentAt.put(text, System.nanoTime());
+                    room.broadcast("user" + node, text);
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) sender.join();
+        long expected = (long) nodeCount * messages;
+        await(members, expected, 60_000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<String> reference = members.get(0).get(0).received;
+        boolean sameOrder = true;
+        for (List<Member> node : members) {
+            for (Member member : node) sameOrder &= member.received.equals(reference);
+        }
+        Set<String> distinct = new HashSet<>(reference);
+        boolean senderOrder = inSenderOrder(reference, nodeCount);
+        System.out.printf("delivered %,d messages to %d members in %.2f s, %,.0f msgs/s%n", expected, nodeCount * memberCount,
+                seconds, expected / seconds);
+        System.out.printf("same order on every member: %s | each exactly once: %s | each node's messages in the order sent: %s%n",
+                sameOrder, distinct.size() == reference.size() && distinct.size() == expected, senderOrder);
+        for (int i = 0; i < nodeCount; i++) {
+            long[] latencies = members.get(i).get(0).latencies(sentAt);
+            System.out.printf("node %d: delivery during the flood p50 %.2f ms | p99 %.2f ms | max %.2f ms%n", i,
+                    latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6, latencies[latencies.length - 1] / 1e6);
+        }
+
+        // one message at a time from every node: the trip through the owner to the last member anywhere
+        for (int i = 0; i < nodeCount; i++) {
+            long[] trips = new long[200];
+            for (int j = 0; j < trips.length; j++) {
+                long sent = System.nanoTime();
+                rooms[i].broadcast("user" + i, "paced from node " + i + " #" + j);
+                expected++;
+                for (List<Member> node : members) {
+                    for (Member member : node) while (member.count() < expected) Thread.yield();
+                }
+                trips[j] = System.nanoTime() - sent;
+            }
+            Arrays.sort(trips);
+            System.out.printf("sent on node %d%s: every member has it after p50 %.2f ms | p99 %.2f ms%n", i,
+                    i == owner ? " (the owner)" : "", trips[trips.length / 2] / 1e6, trips[trips.length * 99 / 100] / 1e6);
+        }
+
+        // saved once by the owner, paged and searched from every node
+        while (servers[owner].getMessageWriter().writtenCount() < expected) Thread.sleep(10);
+        String probe = "m" + (nodeCount - 1) + "x" + (messages - 1);
+        for (int i = 0; i < nodeCount; i++) {
+            long deadline = System.currentTimeMillis() + 10_000;
+            MessageSearch.Results found;
+            while ((found = rooms[i].search(probe, 0, 5)).total() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            int before = rooms[i].history(50).before();
+            System.out.printf("node %d: history page continues before id %d | search for %s: %d found%n", i, before, probe, found.total());
+        }
+
+        // the owner goes away and comes back with a new run, the others keep the room
+        servers[owner].shutdown();
+        servers[owner] = start(shared, owner);
+        awaitLinks(servers);
+        rooms[owner] = servers[owner].getRooms().get("cluster");
+        members.set(owner, join(servers[owner], rooms[owner], memberCount));
+        Thread.sleep(200);
+        for (List<Member> node : members) for (Member member : node) member.received.clear();
+        for (int i = 0; i < nodeCount; i++) rooms[i].broadcast("user" + i, "after the restart from node " + i);
+        await(members, nodeCount, 10_000);
+        reference = members.get(0).get(0).received;
+        sameOrder = true;
+        for (List<Member> node : members) for (Member member : node) sameOrder &= member.received.equals(reference);
+        System.out.printf("after restarting node %d: %d messages, same order on every member: %s%n", owner, reference.size(), sameOrder);
+
+        for (ChatServer server : servers) {
+            Cluster cluster = server.getRooms().cluster();
+            System.out.printf("node %d: %d forwarded | %d relayed | %d duplicates | %d dropped%n", cluster.node(),
+                    cluster.forwardedCount(), cluster.relayedCount(), cluster.duplicateCount(), cluster.droppedCount());
+        }
+        for (ChatServer server : servers) server.shutdown();
+    }
+
+    private static ChatServer start(Properties shared, int node) throws Exception {
+        Properties properties = new Properties();
+        properties.putAll(shared);
+        properties.setProperty("cluster.node", String.valueOf(node));
+        return new NioServer(CHAT_PORT + node, "bench", 1, properties);
+    }
+
+    private static void awaitLinks(ChatServer[] servers) throws InterruptedException {
+        for (ChatServer server : servers) {
+            Cluster cluster = server.getRooms().cluster();
+            while (cluster.linksUp() < cluster.size() - 1) Thread.sleep(10);
+        }
+    }
+
+    private static List<Member> join(ChatServer server, Room room, int count) {
+        List<Member> members = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Member member = new Member();
+            server.getRooms().move(member, null, room);
+            members.add(member);
+        }
+        return members;
+    }
+
+    private static void await(List<List<Member>> members, long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (List<Member> node : members) {
+            for (Member member : node) {
+                while (member.count() < count) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("a member got " + member.count() + " of " + count + " messages");
+                    }
+                    Thread.sleep(5);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the messages of each node come in the order that node sent them
+     */
+    private static boolean inSenderOrder(List<String> received, int nodeCount) {
+        int[] next = new int[nodeCount];
+        for (String message : received) {
+            String id = message.substring(message.lastIndexOf(" m") + 2);
+            int node = Integer.parseInt(id.substring(0, id.indexOf('x')));
+            if (Integer.parseInt(id.substring(id.indexOf('x') + 1)) != next[node]++) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A guest that keeps the chat messages it is sent and when it got them
+     */
+    static final class Member implements Session {
+        final List<String> received = new ArrayList<>();
+        final List<Long> receivedAt = new ArrayList<>();
+
+        @Override
+        public String getUsername() {
+            return "Guest";
+        }
+
+        @Override
+        public String getAddress() {
+            return "bench";
+        }
+
+        @Override
+        public boolean isMember() {
+            return true;
+        }
+
+        @Override
+        public synchronized boolean send(byte[] frame) {
+            try {
+                Frame decoded = Frame.decode(ByteBuffer.wrap(frame));
+                if (decoded.type() == Frame.Type.TEXT) {
+                    received.add(decoded.text());
+                    receivedAt.add(System.nanoTime());
+                }
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+
+        synchronized int count() {
+            return received.size();
+        }
+
+        synchronized long[] latencies(Map<String, Long> sentAt) {
+            long[] latencies = new long[received.size()];
+            for (int i = 0; i < latencies.length; i++) {
+                String text = received.get(i);
+                latencies[i] = receivedAt.get(i) - sentAt.get(text.substring(text.indexOf(": ") + 2));
+            }
+            Arrays.sort(latencies);
+            return latencies;
+        }
+
+        @Override
+        public OutboundQueue getOutbound() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import Server.ChatRoom;
+import Server.DatabaseConnection;
+import Server.NioServer;
+import Server.Server;
+import Utils.Digests;
+import Utils.Frame;
+import Utils.ResourceLoader;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.Properties;
+
+/**
+ * Attachment download throughput over TLS on loopback. The old path (1 KB reads with a flush after
+ * every chunk, served here) is compared with both engines, which send record-sized chunks from pooled
+ * buffers and memory map large files.
+ * Args: [file sizes in MB...], 1 100 1024 by default
+ */
+public class download_bench {
+    private static final int PORT = 19300;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[]{1, 100, 1024};
+        for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+
+        Path work = Files.createTempDirectory("download_bench");
+        Properties properties = ResourceLoader.loadProperties();
+        properties.setProperty("db.type", "sqlite");
+        properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        properties.setProperty("server.stagingdir", Files.createDirectories(work.resolve("staging")) + "/");
+        properties.setProperty("server.filedir", Files.createDirectories(work.resolve("files")) + "/");
+        DatabaseConnection database = new DatabaseConnection(properties);
+        database.initDatabase();
+
+        SSLContext context = context();
+        System.out.printf("%8s %14s %14s %14s%n", "size", "1KB+flush", "blocking", "nio");
+        for (int size : sizes) {
+            int id = attachment(database, properties, size);
+            File file = database.getFile(id);
+            int runs = size < 100 ? 5 : 1;
+
+            double before = 0;
+            try (SSLServerSocket legacy = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(PORT)) {
+                Thread server = new Thread(() -> serveLegacy(legacy, file));
+                server.setDaemon(true);
+                server.start();
+                before = best(context, PORT, id, runs);
+            }
+
+            ChatRoom.create("bench", new Server(PORT + 1, "bench", false, properties));
+            double blocking = best(context, PORT + 1, id, runs);
+            ChatRoom.close();
+
+            ChatRoom.create("bench", new NioServer(PORT + 2, "bench", 1, properties));
+            double nio = best(context, PORT + 2, id, runs);
+            ChatRoom.close();
+
+            System.out.printf("%6dMB %10.1f MB/s %9.1f MB/s %9.1f MB/s%n", size, before, blocking, nio);
+            Files.delete(file.toPath());
+        }
+        database.close();
+    }
+
+    /**
+     * Best throughput of several downloads of an attachment
+     */
+    private static double best(SSLContext context, int port, int id, int runs) throws Exception {
+        double best = 0;
+        for (int run = 0; run < runs; run++) {
+            best = Math.max(best, download(context, port, id));
+        }
+        return best;
+    }
+
+    /**
+     * Download an attachment the way the client does, acking every half window
+     * @return MB/s from the request to the last byte
+     */
+    private static double download(SSLContext context, int port, int id) throws IOException {
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            OutputStream out = socket.getOutputStream();
+            Frame.negotiate(in, out);
+            out.write(Frame.control("hello Guest"));
+
+            long start = System.nanoTime();
+            out.write(Frame.control("download 1 " + id + " 0"));
+            long length = -1;
+            long received = 0;
+            long acked = 0;
+            while (length < 0 || received < length) {
+                Frame frame = Frame.read(in);
+                if (frame == null) throw new EOFException("Download cut off at " + received + " bytes");
+                if (frame.type() == Frame.Type.CONTROL && frame.text().startsWith("download ")) {
+                    length = Long.parseLong(frame.text().split(" ")[2]);
+                } else if (frame.type() == Frame.Type.FILE_CHUNK) {
+                    received += frame.payload().remaining();
+                    if (Frame.ackDue(received, acked, length)) {
+                        acked = received;
+                        out.write(Frame.ack(1, received));
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            out.write(Frame.control("exit"));
+            return length / seconds / (1 << 20);
+        }
+    }
+
+    /**
+     * What a download cost before: 1 KB reads, a chunk frame and a flush for each
+     */
+    private static void serveLegacy(SSLServerSocket server, File file) {
+        while (true) {
+            try (SSLSocket socket = (SSLSocket) server.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                Frame.accept(in, out);
+                Frame.read(in); // hello
+                Frame.read(in); // download
+                out.write(Frame.control("download 1 " + file.length() + " 0 " + file.getName()));
+                out.flush();
+                try (FileInputStream fileInput = new FileInputStream(file)) {
+                    byte[] buffer = new byte[1024];
+                    int bytesRead;
+                    while ((bytesRead = fileInput.read(buffer)) != -1) {
+                        out.write(Frame.encode(Frame.Type.FILE_CHUNK, 1, buffer, 0, bytesRead));
+                        out.flush();
+                    }
+                }
+                while (Frame.read(in) != null) ; // acks, then exit
+            } catch (IOException e) {
+                return; // server socket closed
+            }
+        }
+    }
+
+    /**
+     * Save a file of the given size as an attachment
+     */
+    private static int attachment(DatabaseConnection database, Properties properties, int megabytes) throws IOException {
+        String fileName = "System_" + System.nanoTime() + "_bench" + megabytes + ".bin";
+        Path path = Paths.get(properties.getProperty("server.stagingdir"), fileName);
+        ByteBuffer block = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < block.capacity(); i++) block.put((byte) (i * 31));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < megabytes; i++) {
+                block.clear();
+                while (block.hasRemaining()) channel.write(block);
+            }
+        }
+        int id = database.saveUpload(fileName, "bench" + megabytes + ".bin", Digests.sha256(path.toFile()), "File", 1, "System", attachmentId -> "File sent: [ID: " + attachmentId + "]").attachmentId();
+        Files.deleteIfExists(path);
+        return id;
+    }
+
+    private static SSLContext context() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(new FileInputStream("server.keystore"), "123456".toCharArray());
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, "123456".toCharArray());
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,97 @@
+import Utils.Frame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Codec cost of a chat message: the old protocol (GBK PrintWriter.println, BufferedReader.readLine)
+ * against {@link Frame}, read from a blocking stream and decoded from a buffer as the NIO engine does.
+ * Args: [messages] [message length]
+ */
+public class frame_bench {
+    private static final Charset GBK = Charset.forName("GBK");
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        StringBuilder text = new StringBuilder("alice: ");
+        while (text.length() < length) text.append("hello everyone ");
+        String msg = text.substring(0, length);
+
+        System.out.printf("%d messages of %d chars%n", messages, length);
+        System.out.printf("%-14s %12s %12s %12s%n", "codec", "encode ns", "decode ns", "bytes/msg");
+        for (int round = 0; round < 3; round++) { // the first rounds are warm-up
+            boolean print = round == 2;
+            lines(msg, messages, print);
+            frames(msg, messages, print);
+            buffer(msg, messages, print);
+        }
+    }
+
+    private static void lines(String msg, int messages, boolean print) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(bytes, GBK), true);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) out.println(msg);
+        long encoded = System.nanoTime() - start;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes.toByteArray()), GBK));
+        start = System.nanoTime();
+        int read = 0;
+        while (in.readLine() != null) read++;
+        long decoded = System.nanoTime() - start;
+        check(read, messages);
+        if (print) report("line/GBK", encoded, decoded, bytes.size(), messages);
+    }
+
+    private static void frames(String msg, int messages, boolean print) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new BufferedOutputStream(bytes);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) out.write(Frame.text(msg));
+        out.flush();
+        long encoded = System.nanoTime() - start;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        start = System.nanoTime();
+        int read = 0;
+        Frame frame;
+        while ((frame = Frame.read(in)) != null) {
+            frame.text();
+            read++;
+        }
+        long decoded = System.nanoTime() - start;
+        check(read, messages);
+        if (print) report("frame/stream", encoded, decoded, bytes.size(), messages);
+    }
+
+    private static void buffer(String msg, int messages, boolean print) throws IOException {
+        byte[] data = Frame.text(msg); // broadcasts encode once and share the frame
+        ByteBuffer buffer = ByteBuffer.allocate(data.length * messages);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) buffer.put(data);
+        long encoded = System.nanoTime() - start;
+
+        buffer.flip();
+        start = System.nanoTime();
+        int read = 0;
+        Frame frame;
+        while ((frame = Frame.decode(buffer)) != null) {
+            frame.text();
+            read++;
+        }
+        long decoded = System.nanoTime() - start;
+        check(read, messages);
+        if (print) report("frame/buffer", encoded, decoded, buffer.limit(), messages);
+    }
+
+    private static void check(int read, int messages) {
+        if (read != messages) throw new IllegalStateException("Read " + read + " of " + messages + " messages");
+    }
+
+    private static void report(String name, long encoded, long decoded, long bytes, int messages) {
+        System.out.printf("%-14s %12.1f %12.1f %12.1f%n", name, (double) encoded / messages,
+                (double) decoded / messages, (double) bytes / messages);
+    }
+}
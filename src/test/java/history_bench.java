@@ -0,0 +1,64 @@
+import Server.HistoryRing;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Heap kept by a room's history after many messages from a few hundred users: the old unbounded list
+ * of "sender: message" strings against the ring of recent messages, and the cost of an append and a snapshot.
+ * Args: [messages] [ring capacity]
+ */
+public class history_bench {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : HistoryRing.DEFAULT_CAPACITY;
+        String[] senders = new String[300];
+        for (int i = 0; i < senders.length; i++) senders[i] = "user" + i;
+
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            long base = usedHeap();
+            long start = System.nanoTime();
+            List<String> list = new LinkedList<>();
+            for (int i = 0; i < count; i++) {
+                String sender = senders[i % senders.length];
+                list.add(sender + ": " + message(i));
+            }
+            double listNanos = (double) (System.nanoTime() - start) / count;
+            long listBytes = usedHeap() - base;
+            if (list.isEmpty()) throw new IllegalStateException();
+            list = null;
+
+            base = usedHeap();
+            start = System.nanoTime();
+            HistoryRing ring = new HistoryRing(capacity);
+            for (int i = 0; i < count; i++) {
+                ring.append(senders[i % senders.length], message(i));
+            }
+            double ringNanos = (double) (System.nanoTime() - start) / count;
+            long ringBytes = usedHeap() - base;
+            start = System.nanoTime();
+            List<String> snapshot = new ArrayList<>();
+            ring.snapshot(capacity, snapshot);
+            double snapshotMicros = (System.nanoTime() - start) / 1e3;
+            if (snapshot.size() != Math.min(count, capacity)) throw new IllegalStateException("Lost messages");
+
+            if (round == 1) {
+                System.out.printf("list: %,12d bytes retained, %6.1f ns per append%n", listBytes, listNanos);
+                System.out.printf("ring: %,12d bytes retained, %6.1f ns per append, %.0f us per snapshot of %d%n",
+                        ringBytes, ringNanos, snapshotMicros, snapshot.size());
+            }
+        }
+    }
+
+    private static String message(int i) {
+        return "message number " + i + ", a typical line of chat";
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
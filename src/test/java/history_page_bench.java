@@ -0,0 +1,101 @@
+import Server.DatabaseConnection;
+import Server.HistoryPage;
+import Utils.ResourceLoader;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Properties;
+
+/**
+ * Latency of a page of history on SQLite, near the newest message, halfway back and near the oldest:
+ * the LIMIT/OFFSET query sketched in database.sql against keyset pages on the (room_id, mid) index.
+ * Args: [messages] [page size]
+ */
+public class history_page_bench {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Path work = Files.createTempDirectory("history_page_bench");
+        Properties properties = ResourceLoader.loadProperties();
+        properties.setProperty("db.type", "sqlite");
+        properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        properties.setProperty("server.filedir", work + "/");
+        DatabaseConnection database = new DatabaseConnection(properties);
+        database.initDatabase();
+        fill(database, count);
+        PrintStream out = System.out;
+
+        System.out.printf("%,d messages, %d per page%n", count, pageSize);
+        System.out.printf("%-12s %12s %12s%n", "page from", "offset", "keyset");
+        for (double depth : new double[]{0, 0.5, 0.99}) {
+            int skipped = (int) (count * depth);
+            double offsetMillis = best(() -> offsetPage(database, skipped, pageSize));
+            int before = count + 1 - skipped; // ids start at 2, after the default message
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            double keysetMillis = best(() -> {
+                HistoryPage page = database.loadMessages(1, before, pageSize);
+                if (page.messages().size() != pageSize) throw new IllegalStateException("Short page");
+            });
+            System.setOut(out);
+            System.out.printf("%-12s %9.2f ms %9.2f ms%n", (int) (depth * 100) + "% back", offsetMillis, keysetMillis);
+        }
+        database.close();
+    }
+
+    interface Query {
+        void run() throws Exception;
+    }
+
+    private static double best(Query query) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            query.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+
+    /**
+     * A page the way the sketch in database.sql had it, skipping the newer messages
+     */
+    private static void offsetPage(DatabaseConnection database, int skipped, int pageSize) throws Exception {
+        String sql = "SELECT mid, sender, message FROM messages WHERE room_id = 1 ORDER BY sent_at DESC LIMIT ? OFFSET ?";
+        try (Connection conn = database.connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, pageSize);
+            pstmt.setInt(2, skipped);
+            int rows = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) rows++;
+            }
+            if (rows != pageSize) throw new IllegalStateException("Short page");
+        }
+    }
+
+    private static void fill(DatabaseConnection database, int count) throws Exception {
+        try (Connection conn = database.connect()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO messages (room_id, sender, message) VALUES (1, 'System', ?)")) {
+                for (int i = 0; i < count; i++) {
+                    pstmt.setString(1, "message number " + i + ", a typical line of chat");
+                    pstmt.addBatch();
+                    if (i % 10_000 == 9_999) pstmt.executeBatch();
+                }
+                pstmt.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+}
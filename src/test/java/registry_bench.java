@@ -0,0 +1,157 @@
+import Server.SessionRegistry;
+import Server.SocketSession;
+
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Join/leave churn during heavy broadcast: the old global LinkedHashMap guarded by one lock, copied
+ * under the lock for every broadcast, against the {@link SessionRegistry}.
+ * Args: [sessions] [broadcasters] [churners] [seconds]
+ */
+public class registry_bench {
+    private static final byte[] FRAME = SocketSession.encode("alice", "hello everyone");
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int broadcasters = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int churners = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        System.out.printf("%d sessions, %d broadcasting threads, %d join/leave threads, %ds%n",
+                sessions, broadcasters, churners, seconds);
+        System.out.printf("%-10s %14s %16s %16s%n", "registry", "broadcasts/s", "deliveries/s", "joins+leaves/s");
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            boolean print = round == 1;
+            run("locked-map", new LockedMap(), sessions, broadcasters, churners, seconds, print);
+            run("registry", new Registry(), sessions, broadcasters, churners, seconds, print);
+        }
+    }
+
+    private static void run(String name, Sessions registry, int sessions, int broadcasters, int churners,
+                            int seconds, boolean print) throws InterruptedException {
+        for (int i = 0; i < sessions; i++) registry.add(session(i));
+
+        LongAdder broadcasts = new LongAdder();
+        LongAdder deliveries = new LongAdder();
+        LongAdder churn = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(broadcasters + churners);
+
+        for (int t = 0; t < broadcasters; t++) {
+            new Thread(() -> {
+                while (running.get()) {
+                    deliveries.add(registry.broadcast());
+                    broadcasts.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int t = 0; t < churners; t++) {
+            int base = sessions + t * 1_000_000;
+            new Thread(() -> {
+                int i = 0;
+                while (running.get()) {
+                    SocketSession session = session(base + (i++ % 1000));
+                    registry.add(session);
+                    registry.remove(session);
+                    churn.add(2);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+        if (print) {
+            System.out.printf("%-10s %14.0f %16.0f %16.0f%n", name, broadcasts.sum() / (double) seconds,
+                    deliveries.sum() / (double) seconds, churn.sum() / (double) seconds);
+        }
+    }
+
+    private static SocketSession session(int i) {
+        return new SocketSession("user" + i, "/127.0.0.1:" + i, new NullOutputStream());
+    }
+
+    private interface Sessions {
+        void add(SocketSession session);
+
+        void remove(SocketSession session);
+
+        int broadcast();
+    }
+
+    /**
+     * What Server did before: one map, one lock, a copy per broadcast
+     */
+    private static class LockedMap implements Sessions {
+        private final Map<String, SocketSession> sockets = new LinkedHashMap<>();
+        private final Lock lock = new ReentrantLock();
+
+        public void add(SocketSession session) {
+            lock.lock();
+            try {
+                sockets.put(session.getAddress(), session);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void remove(SocketSession session) {
+            lock.lock();
+            try {
+                sockets.remove(session.getAddress());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int broadcast() {
+            SocketSession[] recipients;
+            lock.lock();
+            try {
+                recipients = sockets.values().toArray(new SocketSession[0]);
+            } finally {
+                lock.unlock();
+            }
+            int sent = 0;
+            for (SocketSession session : recipients) {
+                if (session.isMember() && session.send(FRAME)) sent++;
+            }
+            return sent;
+        }
+    }
+
+    private static class Registry implements Sessions {
+        private final SessionRegistry<SocketSession> sessions = new SessionRegistry<>();
+
+        public void add(SocketSession session) {
+            sessions.add(session);
+        }
+
+        public void remove(SocketSession session) {
+            sessions.remove(session);
+        }
+
+        public int broadcast() {
+            int sent = 0;
+            for (SocketSession session : sessions.snapshot()) {
+                if (session.isMember() && session.send(FRAME)) sent++;
+            }
+            return sent;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+    }
+}
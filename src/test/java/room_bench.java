@@ -0,0 +1,231 @@
+import Server.DatabaseConnection;
+import Server.HistoryRing;
+import Server.MessageWriter;
+import Server.OutboundQueue;
+import Server.Room;
+import Server.Rooms;
+import Server.Session;
+import Server.SocketSession;
+import Utils.ResourceLoader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivery latency in quiet rooms while one room is flooded: every broadcast of the server sequenced on one
+ * dispatcher thread, as before rooms, against a {@link Room} actor per room on the {@link Rooms} pool.
+ * Args: [hot room members] [hot room messages] [quiet rooms] [probes per quiet room]
+ */
+public class room_bench {
+
+    public static void main(String[] args) throws Exception {
+        int hotMembers = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int hotMessages = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int quietRooms = args.length > 2 ? Integer.parseInt(args[2]) : 7;
+        int probes = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        Path work = Files.createTempDirectory("room_bench");
+        Properties properties = ResourceLoader.loadProperties();
+        properties.setProperty("db.type", "sqlite");
+        properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        properties.setProperty("server.filedir", work + "/");
+        properties.setProperty("db.search", "memory");
+        properties.setProperty("db.writebehind.capacity", String.valueOf(hotMessages * 2));
+        DatabaseConnection database = new DatabaseConnection(properties);
+        database.initDatabase();
+        MessageWriter writer = new MessageWriter(database, MessageWriter.capacity(properties));
+
+        System.out.printf("hot room: %d members, %d messages; %d quiet rooms, %d probes each; %d cores%n",
+                hotMembers, hotMessages, quietRooms, probes, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-12s %12s %12s %12s %12s%n", "sequencing", "hot msgs/s", "probe p50", "probe p99", "probe max");
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            boolean print = round == 1;
+            run("dispatcher", new Dispatcher(writer, properties), hotMembers, hotMessages, quietRooms, probes, print);
+            run("room actors", new Actors(database, writer, properties), hotMembers, hotMessages, quietRooms, probes, print);
+        }
+        writer.close();
+        database.close();
+    }
+
+    private static void run(String name, Server server, int hotMembers, int hotMessages, int quietRooms, int probes,
+                            boolean print) throws Exception {
+        LongAdder hotDeliveries = new LongAdder();
+        for (int i = 0; i < hotMembers; i++) server.join(0, new Member("hot" + i, hotDeliveries, null));
+        long[] sentAt = new long[quietRooms + 1];
+        List<Long> latencies = new ArrayList<>();
+        for (int room = 1; room <= quietRooms; room++) {
+            int probeRoom = room;
+            for (int i = 0; i < 10; i++) {
+                // the first member of a quiet room times its probes
+                Runnable probed = i > 0 ? null : () -> {
+                    synchronized (latencies) {
+                        latencies.add(System.nanoTime() - sentAt[probeRoom]);
+                        latencies.notifyAll();
+                    }
+                };
+                server.join(probeRoom, new Member("quiet" + room + "-" + i, new LongAdder(), probed));
+            }
+        }
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        Thread flood = new Thread(() -> {
+            for (int i = 0; i < hotMessages; i++) server.broadcast(0, "alice", "message " + i + " in the busy room");
+        });
+        flood.start();
+        for (int probe = 0; probe < probes; probe++) {
+            for (int room = 1; room <= quietRooms; room++) {
+                int expected;
+                synchronized (latencies) {
+                    expected = latencies.size() + 1;
+                    sentAt[room] = System.nanoTime();
+                }
+                server.broadcast(room, "bob", "probe");
+                synchronized (latencies) {
+                    while (latencies.size() < expected) latencies.wait();
+                }
+            }
+        }
+        flood.join();
+        while (hotDeliveries.sum() < (long) hotMembers * hotMessages) Thread.sleep(1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.shutdown();
+
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = latencies.get(i);
+        Arrays.sort(sorted);
+        if (print) {
+            System.out.printf("%-12s %,12.0f %9.2f ms %9.2f ms %9.2f ms%n", name, hotMessages / seconds,
+                    sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    interface Server {
+        void join(int room, Session session);
+
+        void broadcast(int room, String from, String msg);
+
+        void shutdown() throws InterruptedException;
+    }
+
+    /**
+     * Every room's broadcasts on the one thread, the way the servers sequenced the single room
+     */
+    static final class Dispatcher implements Server {
+        private final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+        private final List<List<Session>> members = new ArrayList<>();
+        private final List<HistoryRing> histories = new ArrayList<>();
+        private final MessageWriter writer;
+        private final int capacity;
+
+        Dispatcher(MessageWriter writer, Properties properties) {
+            this.writer = writer;
+            this.capacity = HistoryRing.capacity(properties);
+        }
+
+        @Override
+        public void join(int room, Session session) {
+            dispatcher.execute(() -> {
+                while (members.size() <= room) {
+                    members.add(new ArrayList<>());
+                    histories.add(new HistoryRing(capacity));
+                }
+                members.get(room).add(session);
+            });
+        }
+
+        @Override
+        public void broadcast(int room, String from, String msg) {
+            dispatcher.execute(() -> {
+                histories.get(room).append(from, msg);
+                byte[] frame = SocketSession.encode(from, msg);
+                for (Session member : members.get(room)) member.send(frame);
+                writer.save(room + 1, from, msg);
+            });
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            dispatcher.shutdown();
+            dispatcher.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    static final class Actors implements Server {
+        private final Rooms rooms;
+        private final List<Room> byIndex = new ArrayList<>();
+
+        Actors(DatabaseConnection database, MessageWriter writer, Properties properties) throws IOException {
+            rooms = new Rooms("bench", database, writer, properties);
+        }
+
+        @Override
+        public void join(int room, Session session) {
+            while (byIndex.size() <= room) byIndex.add(byIndex.isEmpty() ? rooms.lobby() : rooms.get("bench-" + byIndex.size()));
+            rooms.move(session, null, byIndex.get(room));
+        }
+
+        @Override
+        public void broadcast(int room, String from, String msg) {
+            byIndex.get(room).broadcast(from, msg);
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            rooms.shutdown();
+        }
+    }
+
+    /**
+     * A member that counts what it is sent; guests, so joining sends nobody a welcome
+     */
+    static final class Member implements Session {
+        private final String address;
+        private final LongAdder delivered;
+        private final Runnable probed;
+
+        Member(String address, LongAdder delivered, Runnable probed) {
+            this.address = address;
+            this.delivered = delivered;
+            this.probed = probed;
+        }
+
+        @Override
+        public String getUsername() {
+            return "Guest";
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isMember() {
+            return true;
+        }
+
+        @Override
+        public boolean send(byte[] frame) {
+            if (frame.length > 0 && frame[0] == 1) { // TEXT, not the room's name
+                delivered.increment();
+                if (probed != null) probed.run();
+            }
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getOutbound() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import Server.DatabaseConnection;
+import Server.MessageSearch;
+import Utils.ResourceLoader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Latency of a search on SQLite: a LIKE '%...%' scan of every message against the FTS5 table and the index
+ * kept in memory, for a rare word, a common one and two words together; then how long a saved message takes
+ * to show up in the results.
+ * Args: [messages]
+ */
+public class search_bench {
+    private static final String[] WORDS = {
+            "hello", "lunch", "meeting", "tomorrow", "deploy", "build", "coffee", "weekend", "review", "release",
+            "server", "client", "broken", "fixed", "thanks", "later", "today", "ticket", "design", "test"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path work = Files.createTempDirectory("search_bench");
+        DatabaseConnection fts = database(work, "fts5");
+        fts.initDatabase();
+        fill(fts, count);
+
+        long start = System.nanoTime();
+        fts.getSearch().open();
+        System.out.printf("%,d messages; FTS5 table built in %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+        DatabaseConnection memory = database(work, "memory");
+        start = System.nanoTime();
+        memory.getSearch().open();
+        while (memory.searchMessages(1, "lastfiller", 0, 1).total() == 0) Thread.sleep(10);
+        System.out.printf("in-memory index built in %d ms, heap in use %d MB%n", (System.nanoTime() - start) / 1_000_000,
+                (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+
+        System.out.printf("%-18s %8s %12s %12s %12s%n", "query", "matches", "LIKE scan", "FTS5", "memory");
+        for (String query : new String[]{"needle7", "coffee", "deploy broken"}) {
+            int[] matches = new int[1];
+            double like = best(() -> matches[0] = like(fts, query));
+            double ftsMillis = best(() -> check(fts.searchMessages(1, query, 0, 20), matches[0]));
+            double memoryMillis = best(() -> check(memory.searchMessages(1, query, 0, 20), matches[0]));
+            System.out.printf("%-18s %,8d %9.2f ms %9.2f ms %9.2f ms%n", query, matches[0], like, ftsMillis, memoryMillis);
+        }
+
+        for (DatabaseConnection database : new DatabaseConnection[]{fts, memory}) {
+            String word = "fresh" + System.nanoTime();
+            start = System.nanoTime();
+            database.saveMsgs(new int[]{1}, new String[]{"bench"}, new String[]{"just saved " + word});
+            while (database.searchMessages(1, word, 0, 1).total() == 0) Thread.yield();
+            System.out.printf("%s: saved message found after %.2f ms%n", database == fts ? "FTS5" : "memory",
+                    (System.nanoTime() - start) / 1e6);
+        }
+        fts.close();
+        memory.close();
+    }
+
+    private static DatabaseConnection database(Path work, String search) throws Exception {
+        Properties properties = ResourceLoader.loadProperties();
+        properties.setProperty("db.type", "sqlite");
+        properties.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        properties.setProperty("server.filedir", work + "/");
+        properties.setProperty("db.search", search);
+        return new DatabaseConnection(properties);
+    }
+
+    interface Query {
+        void run() throws Exception;
+    }
+
+    private static double best(Query query) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            query.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+
+    private static void check(MessageSearch.Results results, int matches) {
+        if (results.total() != matches) throw new IllegalStateException(results.total() + " matches, the scan found " + matches);
+    }
+
+    /**
+     * The search the way the sketch in database.sql had it, counting what it finds
+     */
+    private static int like(DatabaseConnection database, String query) throws Exception {
+        StringBuilder sql = new StringBuilder("SELECT count(*) FROM messages WHERE room_id = 1");
+        String[] words = query.split(" ");
+        for (String ignored : words) sql.append(" AND (' ' || message || ' ') LIKE ?");
+        try (Connection conn = database.connect();
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < words.length; i++) pstmt.setString(i + 1, "% " + words[i] + " %");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Lines of words separated by single spaces, each with one rare word of a thousand
+     */
+    private static void fill(DatabaseConnection database, int count) throws Exception {
+        Random random = new Random(42);
+        try (Connection conn = database.connect()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO messages (room_id, sender, message) VALUES (1, 'System', ?)")) {
+                for (int i = 0; i < count; i++) {
+                    StringBuilder message = new StringBuilder("needle" + random.nextInt(1000));
+                    for (int words = 4 + random.nextInt(8); words > 0; words--) {
+                        message.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                    }
+                    pstmt.setString(1, i == count - 1 ? "lastfiller" : message.toString());
+                    pstmt.addBatch();
+                    if (i % 10_000 == 9_999) pstmt.executeBatch();
+                }
+                pstmt.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+}
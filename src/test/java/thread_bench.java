@@ -0,0 +1,99 @@
+import Server.ChatRoom;
+import Server.ServerMode;
+import Utils.Frame;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Max concurrent sessions and memory per session for a server mode.
+ * Run once per mode, each in a fresh JVM (the server keeps static state):
+ *   thread_bench THREAD_PER_CONNECTION 5000
+ *   thread_bench VIRTUAL_THREADS 5000      (Java 21+)
+ *   thread_bench NIO 5000
+ * Sessions log in as "Guest" so joining doesn't broadcast to everyone already connected.
+ */
+public class thread_bench {
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0]) : ServerMode.THREAD_PER_CONNECTION;
+        int target = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 29090;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() { // ChatRoom prints its status on every join
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        ChatRoom.create("bench", port, mode);
+        Thread.sleep(500);
+        System.gc();
+        long baseRss = rssKb();
+        long baseHeap = usedHeap();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        SSLSocketFactory factory = sslContext.getSocketFactory();
+
+        console.printf("mode=%s target=%d%n", mode, target);
+        List<SSLSocket> sockets = new ArrayList<>();
+        String failure = null;
+        long start = System.nanoTime();
+        try {
+            while (sockets.size() < target) {
+                SSLSocket socket = (SSLSocket) factory.createSocket("localhost", port);
+                sockets.add(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Frame.negotiate(in, socket.getOutputStream());
+                socket.getOutputStream().write(Frame.control("hello Guest"));
+                Frame.read(in); // chatroom name, the session is up
+                if (sockets.size() % 1000 == 0) report(console, sockets.size(), baseRss, baseHeap, baseThreads);
+            }
+        } catch (Throwable e) {
+            failure = e.toString();
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        report(console, sockets.size(), baseRss, baseHeap, baseThreads);
+        console.printf("max concurrent sessions: %d in %d ms%s%n", sockets.size(), elapsed,
+                failure == null ? "" : " (stopped by " + failure + ")");
+        System.exit(0);
+    }
+
+    private static void report(PrintStream console, int sessions, long baseRss, long baseHeap, int baseThreads) {
+        System.gc();
+        long rss = rssKb() - baseRss;
+        long heap = usedHeap() - baseHeap;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+        console.printf("sessions=%6d  platform threads=+%6d  rss=+%8d KB (%5.1f KB/session)  heap=+%8d KB (%5.1f KB/session)%n",
+                sessions, threads, rss, (double) rss / sessions, heap / 1024, heap / 1024.0 / sessions);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // resident set size from /proc, 0 where it is not available
+    private static long rssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        } catch (IOException ignored) {
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,93 @@
+import Server.ChatRoom;
+import Server.ServerMode;
+import Utils.Frame;
+import Utils.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * Connecting again and again, as reconnects and logins do: a new client TLS context loaded for every connection,
+ * as the clients did, against the process's shared context whose sessions are resumed. Each connection is timed
+ * from the connect to the lobby's name after the hello; the handshake counts of both sides are printed after.
+ * Args: [mode] [connections] [port]
+ */
+public class tls_bench {
+
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0]) : ServerMode.NIO;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 29190;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() { // ChatRoom prints its status on every join
+            @Override
+            public void write(int b) {
+            }
+        }));
+        ChatRoom.create("bench", port, mode);
+        Thread.sleep(500);
+
+        console.printf("mode=%s, %d connections each%n", mode, connections);
+        console.printf("%-16s %10s %10s %10s%n", "client context", "p50", "p99", "total");
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            boolean print = round == 1;
+            run(console, "new per socket", print, connections, () -> {
+                SSLContext context = loadContext();
+                return (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+            });
+            run(console, "shared", print, connections, () -> Tls.connect("localhost", port));
+        }
+        Tls.Handshakes client = Tls.CLIENT_HANDSHAKES;
+        Tls.Handshakes server = Tls.SERVER_HANDSHAKES;
+        console.printf("shared client context: %d full, %d resumed (%.0f%%)%n", client.fullCount(), client.resumedCount(),
+                client.resumedRatio() * 100);
+        console.printf("server: %d full, %d resumed (%.0f%%)%n", server.fullCount(), server.resumedCount(),
+                server.resumedRatio() * 100);
+        System.exit(0);
+    }
+
+    private static void run(PrintStream console, String name, boolean print, int connections, Connector connector) throws Exception {
+        long[] times = new long[connections];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            long begin = System.nanoTime();
+            SSLSocket socket = connector.connect();
+            socket.setTcpNoDelay(true); // as the clients do
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            Frame.negotiate(in, socket.getOutputStream());
+            socket.getOutputStream().write(Frame.control("hello Guest"));
+            Frame.read(in); // the lobby's name, the session is up
+            times[i] = System.nanoTime() - begin;
+            socket.getOutputStream().write(Frame.control("exit"));
+            socket.close();
+        }
+        double total = (System.nanoTime() - start) / 1e6;
+        Arrays.sort(times);
+        if (print) {
+            console.printf("%-16s %7.2f ms %7.2f ms %7.0f ms%n", name, times[connections / 2] / 1e6,
+                    times[connections * 99 / 100] / 1e6, total);
+        }
+    }
+
+    interface Connector {
+        SSLSocket connect() throws Exception;
+    }
+
+    private static SSLContext loadContext() throws Exception {
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(new FileInputStream("client.truststore"), "123456".toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+}
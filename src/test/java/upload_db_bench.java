@@ -0,0 +1,140 @@
+import Server.DatabaseConnection;
+import Utils.Digests;
+import Utils.ResourceLoader;
+
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.Properties;
+
+/**
+ * Database time per file upload on SQLite and MySQL: the old sequence of saveFile, saveMsg and linkFile,
+ * each on a fresh connection with freshly prepared statements, against saveUpload on a pooled connection
+ * with cached statements in one transaction. MySQL is skipped when it cannot be reached.
+ * Args: [uploads]
+ */
+public class upload_db_bench {
+    private static final byte[] CONTENT = new byte[1024];
+
+    public static void main(String[] args) throws Exception {
+        int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        Path work = Files.createTempDirectory("upload_db_bench");
+
+        Properties sqlite = ResourceLoader.loadProperties();
+        sqlite.setProperty("db.type", "sqlite");
+        sqlite.setProperty("sqlite.url", "jdbc:sqlite:" + work.resolve("bench.db"));
+        run("sqlite", sqlite, work, uploads);
+
+        Properties mysql = ResourceLoader.loadProperties();
+        mysql.setProperty("db.type", "mysql");
+        if (reachable(mysql)) run("mysql", mysql, work, uploads);
+    }
+
+    /**
+     * Whether the configured MySQL server takes connections
+     */
+    private static boolean reachable(Properties properties) {
+        try {
+            DriverManager.getConnection(properties.getProperty("db.url"), properties.getProperty("db.user"), properties.getProperty("db.password")).close();
+            return true;
+        } catch (SQLException e) {
+            System.out.println("mysql: skipped, " + e.getMessage().split("\n")[0]);
+            return false;
+        }
+    }
+
+    private static void run(String name, Properties properties, Path work, int uploads) throws Exception {
+        Path tmp = Files.createDirectories(work.resolve(name + "-tmp"));
+        Path files = Files.createDirectories(work.resolve(name + "-files"));
+        properties.setProperty("server.tmpdir", tmp + "/");
+        properties.setProperty("server.stagingdir", tmp + "/"); // saveUpload renames from here
+        properties.setProperty("server.filedir", files + "/");
+        DatabaseConnection database = new DatabaseConnection(properties);
+        database.initDatabase();
+        Opener opener = "sqlite".equals(name)
+                ? () -> DriverManager.getConnection(properties.getProperty("sqlite.url"))
+                : () -> DriverManager.getConnection(properties.getProperty("db.url"), properties.getProperty("db.user"), properties.getProperty("db.password"));
+
+        for (int round = 0; round < 2; round++) { // the first round is warm-up
+            long before = 0;
+            long after = 0;
+            for (int i = 0; i < uploads; i++) {
+                String beforeFile = stage(tmp, "b" + round + "x" + i);
+                long start = System.nanoTime();
+                uploadBefore(opener, properties, beforeFile);
+                before += System.nanoTime() - start;
+
+                String afterFile = stage(tmp, "a" + round + "x" + i);
+                String digest = Digests.sha256(tmp.resolve(afterFile).toFile()); // computed while the upload arrives
+                start = System.nanoTime();
+                database.saveUpload(afterFile, afterFile.split("_")[2], digest, "File", 1, "System", id -> "File sent: [ID: " + id + "]");
+                after += System.nanoTime() - start;
+            }
+            if (round == 1) {
+                System.out.printf("%-7s before %8.3f ms/upload | after %8.3f ms/upload | %.1fx | statement cache %d hits, %d misses%n",
+                        name, before / 1e6 / uploads, after / 1e6 / uploads, (double) before / after,
+                        database.getPool().statementCacheHits(), database.getPool().statementCacheMisses());
+            }
+        }
+        database.close();
+    }
+
+    private static String stage(Path tmp, String id) throws Exception {
+        String fileName = "System_" + System.nanoTime() + "_" + id + ".txt";
+        Files.write(tmp.resolve(fileName), ByteBuffer.wrap(CONTENT.clone()).putLong(System.nanoTime()).array()); // distinct contents, no blob is shared
+        return fileName;
+    }
+
+    /**
+     * What an upload cost before: saveFile, saveMsg and linkFile, one connection each
+     */
+    private static void uploadBefore(Opener opener, Properties properties, String fileName) throws Exception {
+        String fileBaseName = fileName.split("_")[2];
+        int attachmentId;
+        try (Connection conn = opener.open()) {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO Attachments (file_name, message_id, file_path, file_type) VALUES (?, 1, '', ?)", Statement.RETURN_GENERATED_KEYS)) {
+                pstmt.setString(1, fileBaseName);
+                pstmt.setString(2, "File");
+                pstmt.executeUpdate();
+                try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                    rs.next();
+                    attachmentId = rs.getInt(1);
+                }
+            }
+            String storage = properties.getProperty("server.filedir") + LocalDate.now() + "/";
+            Path target = Paths.get(storage + "attachment_" + attachmentId + ".txt");
+            Files.createDirectories(target.getParent());
+            Files.copy(Paths.get(properties.getProperty("server.tmpdir") + fileName), target);
+            try (PreparedStatement pstmt = conn.prepareStatement("UPDATE Attachments SET file_path = ? WHERE attachment_id = ?")) {
+                pstmt.setString(1, target.toString());
+                pstmt.setInt(2, attachmentId);
+                pstmt.executeUpdate();
+            }
+        }
+        int msgId;
+        try (Connection conn = opener.open();
+             PreparedStatement pstmt = conn.prepareStatement(
+                     "INSERT INTO messages (room_id, sender, message) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, 1);
+            pstmt.setString(2, "System");
+            pstmt.setString(3, "File sent: [ID: " + attachmentId + "]");
+            pstmt.executeUpdate();
+            try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                rs.next();
+                msgId = rs.getInt(1);
+            }
+        }
+        try (Connection conn = opener.open();
+             PreparedStatement pstmt = conn.prepareStatement("UPDATE Attachments SET message_id = ? WHERE attachment_id = ?")) {
+            pstmt.setInt(1, msgId);
+            pstmt.setInt(2, attachmentId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private interface Opener {
+        Connection open() throws SQLException;
+    }
+}
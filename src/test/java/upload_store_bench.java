@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Disk cost of putting a received upload into the attachment storage: the old copy out of the tmp
+ * directory, which also left the tmp file behind, against the rename of a staging file on the same volume.
+ * Args: [file size in MB] [uploads], 100 5 by default
+ */
+public class upload_store_bench {
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int uploads = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path work = Files.createTempDirectory("upload_store_bench");
+        Path staging = Files.createDirectories(work.resolve("staging"));
+        Path storage = Files.createDirectories(work.resolve("attachment"));
+
+        long copyNanos = 0;
+        long moveNanos = 0;
+        for (int i = 0; i < uploads; i++) {
+            Path received = receive(staging.resolve("copy" + i), megabytes);
+            long start = System.nanoTime();
+            Files.copy(received, storage.resolve("copy" + i));
+            try (FileChannel channel = FileChannel.open(storage.resolve("copy" + i), StandardOpenOption.WRITE)) {
+                channel.force(true); // count the copy reaching the disk, not just the page cache
+            }
+            copyNanos += System.nanoTime() - start;
+
+            received = receive(staging.resolve("move" + i), megabytes);
+            start = System.nanoTime();
+            Files.move(received, storage.resolve("move" + i), StandardCopyOption.ATOMIC_MOVE);
+            moveNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("%d x %d MB: copy %.1f ms/upload, %d MB written | rename %.3f ms/upload, %d MB written%n",
+                uploads, megabytes, copyNanos / 1e6 / uploads, 2 * megabytes, moveNanos / 1e6 / uploads, megabytes);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+            for (Path file : files) Files.delete(file); // the copies' tmp files, which used to stay
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(storage)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(staging);
+        Files.delete(storage);
+        Files.delete(work);
+    }
+
+    /**
+     * Write a file the way an upload arrives, chunk by chunk
+     */
+    private static Path receive(Path path, int megabytes) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(16 * 1024);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < (long) megabytes << 20; written += chunk.capacity()) {
+                chunk.clear();
+                while (chunk.hasRemaining()) channel.write(chunk);
+            }
+            channel.force(true);
+        }
+        return path;
+    }
+}